@@ -0,0 +1,632 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Talking RSS Reader.
+ *
+ * @author sdoyon@google.com (Stephane Doyon)
+ */
+
+package com.googlecode.talkingrssreader.talkingrss;
+
+import android.util.Config;
+import android.util.Log;
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.googlecode.talkingrssreader.talkingrss.ReaderClientData.ArticleEntry;
+import com.googlecode.talkingrssreader.talkingrss.ReaderClientData.ReaderAtomFeed;
+
+/** ArticleStore: persistent on-disk cache of articles, so that the
+ * last feed read can be shown right away on the next start, before
+ * anything was fetched from the network.
+ */
+
+/* Articles are kept in an append-only log file. Storing an article
+   again (when its read state or tags change) just appends a new
+   record, and the in-memory index points to the latest one. The index
+   is built lazily by scanning the record headers the first time the
+   store is used, and article bodies are only read back on demand: a
+   restored feed holds stubs, which get filled in as they are shown or
+   pre-parsed.
+
+   The log is compacted when it carries too much dead weight or when
+   the live articles go over budget, in which case read articles are
+   evicted, least recently used first.
+
+   The feed being read (its id, title, order of entries and reading
+   position) is saved separately in a small snapshot file, and so are
+   the subscription, label and unread count lists.
+
+   All I/O errors are logged and otherwise treated like cache misses:
+   the store is only an optimization. */
+
+public class ArticleStore {
+  private static final String TAG = "talkingrss-store";
+
+  private static final String LOG_FILE = "articles.log";
+  private static final String FEED_FILE = "feed.dat";
+  private static final String LISTS_FILE = "lists.dat";
+  private static final int LOG_MAGIC = 0x54524c47;  // "TRLG"
+  private static final int FEED_MAGIC = 0x54524644;  // "TRFD"
+  private static final int LISTS_MAGIC = 0x54524c53;  // "TRLS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;  // magic + version
+
+  private static final byte RECORD_PUT = 1;
+
+  // Budget for the live article data. Read articles are evicted
+  // beyond this.
+  static final long MAX_LIVE_BYTES = 2*1024*1024;
+  // Compact the log once dead records take up this much space.
+  private static final long MAX_DEAD_BYTES = 512*1024;
+
+  // Where the latest record for an article is in the log.
+  private static class IndexEntry {
+    long offset;
+    int length;  // of the whole record
+    boolean isRead;
+    IndexEntry(long offset, int length, boolean isRead) {
+      this.offset = offset;
+      this.length = length;
+      this.isRead = isRead;
+    }
+  }
+
+  private File dir;
+  private File logFile;
+  private File feedFile;
+  private File listsFile;
+  // Index by article tag, in least recently used order. null until
+  // loaded.
+  private LinkedHashMap<String, IndexEntry> index;
+  private long liveBytes;  // sum of the lengths of indexed records.
+  private RandomAccessFile log;
+
+  public ArticleStore(File dir) {
+    this.dir = dir;
+    logFile = new File(dir, LOG_FILE);
+    feedFile = new File(dir, FEED_FILE);
+    listsFile = new File(dir, LISTS_FILE);
+  }
+
+  // Stores or updates articles.
+  public synchronized void putArticles(List<ArticleEntry> articles) {
+    if (!ensureOpen())
+      return;
+    try {
+      for (ArticleEntry article : articles) {
+        if (!article.isStub)  // Else we have it already.
+          appendArticle(article);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to store articles");
+      e.printStackTrace();
+      reset();
+      return;
+    }
+    maybeCompact();
+  }
+  public void putArticle(ArticleEntry article) {
+    ArrayList<ArticleEntry> list = new ArrayList<ArticleEntry>(1);
+    list.add(article);
+    putArticles(list);
+  }
+
+  // Reads back an article, or returns null if we don't have it.
+  public synchronized ArticleEntry getArticle(ReaderClientData client,
+                                              String tag) {
+    ArticleEntry article = client.new ArticleEntry();
+    article.tag = tag;
+    if (!readArticle(article))
+      return null;
+    return article;
+  }
+
+  // Reads back the rest of a stub from loadFeed(). If the article is
+  // gone from the store, it is left empty. Either way it is no longer
+  // a stub.
+  public synchronized void fillArticle(ArticleEntry stub) {
+    if (!stub.isStub)
+      return;
+    if (!readArticle(stub))
+      Log.w(TAG, "Lost stored article " + stub.tag);
+    stub.isStub = false;
+  }
+
+  // Reads the stored article whose tag is that of |article| into it.
+  // Returns false if we don't have it.
+  private boolean readArticle(ArticleEntry article) {
+    if (!ensureOpen())
+      return false;
+    String tag = article.tag;
+    IndexEntry ie = index.get(tag);  // also marks it recently used.
+    if (ie == null)
+      return false;
+    try {
+      byte[] record = new byte[ie.length];
+      log.seek(ie.offset);
+      log.readFully(record);
+      DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(record));
+      in.readByte();  // type
+      readString(in);  // tag
+      in.readInt();  // payload length
+      readArticle(in, article);
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read article " + tag);
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  // Forgets all stored articles and the saved feed, as when switching
+  // to another account.
+  public synchronized void clear() {
+    closeLog();
+    logFile.delete();
+    feedFile.delete();
+    listsFile.delete();
+    index = null;
+    liveBytes = 0;
+  }
+
+  public synchronized void close() {
+    closeLog();
+    index = null;
+  }
+
+  // Saves the feed being read: its description, the order of its
+  // entries and the reading position. The articles themselves must
+  // have been stored with putArticles().
+  public synchronized void saveFeed(ReaderAtomFeed feed, int currentIndex) {
+    File tmp = new File(dir, FEED_FILE + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp), 8*1024));
+      out.writeInt(FEED_MAGIC);
+      out.writeInt(VERSION);
+      writeString(out, feed.id);
+      writeString(out, feed.title);
+      writeString(out, feed.continuation);
+      out.writeBoolean(feed.excludeRead);
+      out.writeInt(currentIndex);
+      ArticleEntry[] entries;
+      synchronized (feed.entries) {
+        entries = feed.entries.toArray(new ArticleEntry[0]);
+      }
+      out.writeInt(entries.length);
+      for (ArticleEntry entry : entries)
+        writeString(out, entry.tag);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(feedFile))
+        throw new IOException("rename failed");
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to save feed");
+      e.printStackTrace();
+      tmp.delete();
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch(IOException e) {}
+      }
+    }
+  }
+
+  // A feed restored by loadFeed(), with the reading position in it.
+  static class SavedFeed {
+    ReaderAtomFeed feed;
+    int currentIndex;
+  }
+
+  // Restores the feed saved by saveFeed(). Its entries are stubs, also
+  // put in client.articles, except the one at the reading position,
+  // which is read back in full. Returns null if there is no usable
+  // saved feed. Does I/O: not to be called on the UI thread.
+  public synchronized SavedFeed loadFeed(ReaderClientData client) {
+    long startTime = SystemClock.uptimeMillis();
+    if (!feedFile.exists() || !ensureOpen())
+      return null;
+    ReaderAtomFeed feed = client.new ReaderAtomFeed();
+    int currentIndex;
+    ArrayList<String> tags = new ArrayList<String>();
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(feedFile), 8*1024));
+      if (in.readInt() != FEED_MAGIC || in.readInt() != VERSION)
+        return null;
+      feed.id = readString(in);
+      feed.title = readString(in);
+      feed.continuation = readString(in);
+      feed.excludeRead = in.readBoolean();
+      currentIndex = in.readInt();
+      int n = in.readInt();
+      for (int i = 0; i < n; ++i)
+        tags.add(readString(in));
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to load feed");
+      e.printStackTrace();
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch(IOException e) {}
+      }
+    }
+    ArrayList<ArticleEntry> stubs = new ArrayList<ArticleEntry>(tags.size());
+    for (int i = 0; i < tags.size(); ++i) {
+      if (!index.containsKey(tags.get(i))) {
+        // Evicted. Keep the reading position on the same article.
+        if (i < currentIndex)
+          --currentIndex;
+        continue;
+      }
+      ArticleEntry stub = client.new ArticleEntry();
+      stub.tag = tags.get(i);
+      stub.isStub = true;
+      stubs.add(stub);
+    }
+    if (stubs.isEmpty())
+      return null;
+    if (currentIndex < 0 || currentIndex >= stubs.size())
+      currentIndex = 0;
+    fillArticle(stubs.get(currentIndex));
+    for (ArticleEntry stub : stubs)
+      client.articles.put(stub.tag, stub);
+    feed.entries.addAll(stubs);
+    SavedFeed saved = new SavedFeed();
+    saved.feed = feed;
+    saved.currentIndex = currentIndex;
+    long now = SystemClock.uptimeMillis();
+    if (Config.LOGD) Log.d(TAG, String.format("Loaded feed of %d cached articles in %dms", feed.entries.size(), now-startTime));
+    return saved;
+  }
+
+  // Saves a snapshot of the lists info, after it was freshened.
+  public synchronized void saveLists(ReaderClientData client) {
+    long startTime = SystemClock.uptimeMillis();
+    File tmp = new File(dir, LISTS_FILE + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp), 8*1024));
+      out.writeInt(LISTS_MAGIC);
+      client.writeListsSnapshot(out);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(listsFile))
+        throw new IOException("rename failed");
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to save lists");
+      e.printStackTrace();
+      tmp.delete();
+      return;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch(IOException e) {}
+      }
+    }
+    long now = SystemClock.uptimeMillis();
+    if (Config.LOGD) Log.d(TAG, String.format("Saved lists, %dbytes in %dms", listsFile.length(), now-startTime));
+  }
+
+  // Restores the lists info saved by saveLists() into
+  // |client|. Returns false if there is no usable snapshot.
+  public synchronized boolean loadLists(ReaderClientData client) {
+    long startTime = SystemClock.uptimeMillis();
+    if (!listsFile.exists())
+      return false;
+    RandomAccessFile file = null;
+    try {
+      // It's small: read it all in one go and parse from memory.
+      file = new RandomAccessFile(listsFile, "r");
+      byte[] bytes = new byte[(int)file.length()];
+      file.readFully(bytes);
+      DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(bytes));
+      if (in.readInt() != LISTS_MAGIC)
+        return false;
+      client.readListsSnapshot(in);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to load lists");
+      e.printStackTrace();
+      return false;
+    } finally {
+      if (file != null) {
+        try {
+          file.close();
+        } catch(IOException e) {}
+      }
+    }
+    long now = SystemClock.uptimeMillis();
+    if (Config.LOGD) Log.d(TAG, String.format("Loaded lists, %d feeds, %d labels in %dms", client.rssFeeds.size(), client.userLabels.size(), now-startTime));
+    return true;
+  }
+
+  // Opens the log and builds the index if not done yet. Returns false
+  // if the store is unusable.
+  private boolean ensureOpen() {
+    if (index != null)
+      return true;
+    long startTime = SystemClock.uptimeMillis();
+    try {
+      index = new LinkedHashMap<String, IndexEntry>(64, 0.75f, true);
+      liveBytes = 0;
+      log = new RandomAccessFile(logFile, "rw");
+      if (log.length() < HEADER_SIZE) {
+        writeLogHeader(log);
+      } else {
+        log.seek(0);
+        if (log.readInt() != LOG_MAGIC || log.readInt() != VERSION) {
+          Log.w(TAG, "Discarding incompatible article log");
+          writeLogHeader(log);
+        } else {
+          scanLog();
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to open article log");
+      e.printStackTrace();
+      reset();
+      return false;
+    }
+    long now = SystemClock.uptimeMillis();
+    if (Config.LOGD) Log.d(TAG, String.format("Indexed %d stored articles (%dbytes) in %dms", index.size(), liveBytes, now-startTime));
+    return true;
+  }
+
+  private static void writeLogHeader(RandomAccessFile file)
+      throws IOException {
+    file.setLength(0);
+    file.writeInt(LOG_MAGIC);
+    file.writeInt(VERSION);
+  }
+
+  // Reads the record headers to build the index. A truncated record
+  // at the end (from being killed while writing) is chopped off.
+  private void scanLog() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(logFile), 16*1024));
+    long offset = HEADER_SIZE;
+    long fileLength = log.length();
+    try {
+      in.skipBytes(HEADER_SIZE);
+      while (offset < fileLength) {
+        byte type = in.readByte();
+        if (type != RECORD_PUT)
+          throw new EOFException();  // garbage, treat as truncated.
+        String tag = readString(in);
+        int payloadLength = in.readInt();
+        boolean isRead = in.readBoolean();
+        int toSkip = payloadLength - 1;
+        if (toSkip < 0 || in.skipBytes(toSkip) != toSkip)
+          throw new EOFException();
+        int length = 1 + stringLength(tag) + 4 + payloadLength;
+        if (offset + length > fileLength)
+          throw new EOFException();
+        IndexEntry old = index.remove(tag);
+        if (old != null)
+          liveBytes -= old.length;
+        index.put(tag, new IndexEntry(offset, length, isRead));
+        liveBytes += length;
+        offset += length;
+      }
+    } catch (EOFException e) {
+      Log.w(TAG, String.format("Truncating article log at %d", offset));
+      log.setLength(offset);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void appendArticle(ArticleEntry article) throws IOException {
+    ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(
+        article.text.length() + 512);
+    DataOutputStream payload = new DataOutputStream(payloadBytes);
+    boolean isRead = article.categories.contains(ReaderHttp.READ_STATE);
+    payload.writeBoolean(isRead);  // first, so scanLog() can get at it.
+    writeArticle(payload, article);
+    payload.flush();
+    ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(
+        payloadBytes.size() + 256);
+    DataOutputStream record = new DataOutputStream(recordBytes);
+    record.writeByte(RECORD_PUT);
+    writeString(record, article.tag);
+    record.writeInt(payloadBytes.size());
+    payloadBytes.writeTo(record);
+    record.flush();
+    long offset = log.length();
+    log.seek(offset);
+    log.write(recordBytes.toByteArray());
+    IndexEntry old = index.remove(article.tag);
+    if (old != null)
+      liveBytes -= old.length;
+    index.put(article.tag,
+              new IndexEntry(offset, recordBytes.size(), isRead));
+    liveBytes += recordBytes.size();
+  }
+
+  // Evicts read articles if over budget, and rewrites the log without
+  // its dead records when worthwhile.
+  private void maybeCompact() {
+    try {
+      long deadBytes = log.length() - HEADER_SIZE - liveBytes;
+      if (liveBytes <= MAX_LIVE_BYTES && deadBytes <= MAX_DEAD_BYTES)
+        return;
+      long startTime = SystemClock.uptimeMillis();
+      int evicted = 0;
+      Iterator<Map.Entry<String, IndexEntry>> it
+          = index.entrySet().iterator();
+      while (liveBytes > MAX_LIVE_BYTES && it.hasNext()) {
+        IndexEntry ie = it.next().getValue();
+        if (ie.isRead) {
+          it.remove();
+          liveBytes -= ie.length;
+          ++evicted;
+        }
+      }
+      // Unread articles alone may be over budget: they are kept, and
+      // there is no point rewriting the log if nothing was freed.
+      if (evicted == 0 && deadBytes <= MAX_DEAD_BYTES)
+        return;
+      File tmp = new File(dir, LOG_FILE + ".tmp");
+      RandomAccessFile newLog = new RandomAccessFile(tmp, "rw");
+      LinkedHashMap<String, IndexEntry> newIndex
+          = new LinkedHashMap<String, IndexEntry>(
+              index.size() * 2, 0.75f, true);
+      try {
+        writeLogHeader(newLog);
+        byte[] buf = new byte[16*1024];
+        for (Map.Entry<String, IndexEntry> e : index.entrySet()) {
+          IndexEntry ie = e.getValue();
+          if (buf.length < ie.length)
+            buf = new byte[ie.length];
+          log.seek(ie.offset);
+          log.readFully(buf, 0, ie.length);
+          long newOffset = newLog.getFilePointer();
+          newLog.write(buf, 0, ie.length);
+          newIndex.put(e.getKey(),
+                       new IndexEntry(newOffset, ie.length, ie.isRead));
+        }
+      } finally {
+        newLog.close();
+      }
+      closeLog();
+      if (!tmp.renameTo(logFile))
+        throw new IOException("rename failed");
+      log = new RandomAccessFile(logFile, "rw");
+      index = newIndex;
+      long now = SystemClock.uptimeMillis();
+      if (Config.LOGD) Log.d(TAG, String.format("Compacted article log: evicted %d, kept %d articles (%dbytes) in %dms", evicted, index.size(), liveBytes, now-startTime));
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to compact article log");
+      e.printStackTrace();
+      reset();
+    }
+  }
+
+  // Drops everything after an I/O error, so we start over with an
+  // empty log next time.
+  private void reset() {
+    closeLog();
+    logFile.delete();
+    index = null;
+    liveBytes = 0;
+  }
+
+  private void closeLog() {
+    if (log != null) {
+      try {
+        log.close();
+      } catch(IOException e) {}
+      log = null;
+    }
+  }
+
+  private static void writeArticle(DataOutputStream out, ArticleEntry article)
+      throws IOException {
+    writeString(out, article.title);
+    writeString(out, article.link);
+    writeString(out, article.author);
+    writeString(out, article.baseUrl);
+    writeString(out, article.feedId);
+    writeString(out, article.text);
+    String[] categories;
+    synchronized (article.categories) {
+      categories = article.categories.toArray(new String[0]);
+    }
+    out.writeInt(categories.length);
+    for (String category : categories)
+      writeString(out, category);
+    out.writeLong(article.published == null ? -1 : article.published.getTime());
+    out.writeLong(article.updated == null ? -1 : article.updated.getTime());
+  }
+
+  private static void readArticle(DataInputStream in, ArticleEntry article)
+      throws IOException {
+    in.readBoolean();  // isRead, also found in categories.
+    article.title = readString(in);
+    article.link = readString(in);
+    article.author = readString(in);
+    article.baseUrl = readString(in);
+    article.feedId = readString(in);
+    article.text = readString(in);
+    int n = in.readInt();
+    for (int i = 0; i < n; ++i)
+      article.categories.add(readString(in));
+    long published = in.readLong();
+    long updated = in.readLong();
+    if (published != -1)
+      article.published = new Date(published);
+    if (updated != -1)
+      article.updated = new Date(updated);
+  }
+
+  // Strings are stored as a length followed by UTF-8 bytes, -1 for
+  // null. (DataOutput.writeUTF() is limited to 64K, too little for
+  // some articles.)
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+  private static String readString(DataInputStream in)
+      throws IOException {
+    int length = in.readInt();
+    if (length == -1)
+      return null;
+    if (length < 0)
+      throw new IOException("corrupt string length");
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+  private static int stringLength(String s)
+      throws IOException {
+    return 4 + (s == null ? 0 : s.getBytes("UTF-8").length);
+  }
+}
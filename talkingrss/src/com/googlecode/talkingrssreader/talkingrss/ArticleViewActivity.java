@@ -88,6 +88,8 @@ import java.text.DateFormat;
 import java.util.Date;
 import java.util.Calendar;
 import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.List;
 import java.text.Collator;
 
 import android.speech.tts.TextToSpeech;
@@ -102,7 +104,6 @@ import com.googlecode.talkingrssreader.talkingrss.ReaderClientData.UserLabel;
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.ReaderException;
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.HttpUnauthorizedException;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker;
-import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.HtmlParseException;
 
 import com.googlecode.talkingrssreader.talkingrss.TalkingWebView;
 
@@ -123,6 +124,9 @@ public class ArticleViewActivity extends Activity
 
   private static final int ARTICLE_NAV_DEBOUNCE_DELAY = 250;
 
+  // Number of articles past the current one to parse in advance.
+  private static final int PRE_PARSE_AHEAD = 3;
+
   // Dialog IDs:
   private static final int TAGGING_DIALOG = 1;
   private static final int UNTAGGING_DIALOG = 2;
@@ -154,8 +158,11 @@ public class ArticleViewActivity extends Activity
   // Whether we are displaying the special screen indicating there
   // are no more articles to show.
   private boolean showingEndOfFeed;
-  // Talking stuff and webView for currently displayed article.
+  // Talking stuff for currently displayed article.
   private TalkingWebView talkingWebView;
+  // Article layout and webView, kept from one article to the next.
+  private View articleView;
+  private TalkingWebView.Surface articleSurface;
   // Backup of previous feed, while fetching a new one.
   private ReaderAtomFeed atomFeedBackup;
   // Timestamp of last next/prev article button click, to debounce.
@@ -190,7 +197,14 @@ public class ArticleViewActivity extends Activity
     powerManager = (PowerManager)getSystemService(Context.POWER_SERVICE);
     Core.keyguardManager
       = (KeyguardManager)getSystemService(Context.KEYGUARD_SERVICE);
+    Core.connectivityManager
+      = (ConnectivityManager)getSystemService(Context.CONNECTIVITY_SERVICE);
+    if (Core.store == null)
+      Core.store = new ArticleStore(getCacheDir());
+    if (Core.journal == null)
+      Core.journal = new OpJournal(getFilesDir());
     Core.startThreads(handler);
+    registerConnectivityReceiver();
     requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
     showWorkingTextOnly(getString(R.string.initializing));
 
@@ -216,10 +230,20 @@ public class ArticleViewActivity extends Activity
   @Override
   protected void onDestroy() {
     if (Config.LOGD) Log.d(TAG, "onDestroy");
+    unregisterConnectivityReceiver();
     Core.stopThreads();
+    if (talkingWebView != null) {
+      talkingWebView.kill();
+      talkingWebView = null;
+    }
     if (tts != null)
       tts.shutdown();
     Core.tts = null;
+    Core.speechCache.clear();
+    if (articleSurface != null) {
+      articleSurface.destroy();
+      articleSurface = null;
+    }
     super.onDestroy();
   }
 
@@ -262,6 +286,13 @@ public class ArticleViewActivity extends Activity
   protected void onStop() {
     if (Config.LOGD) Log.d(TAG, "onStop");
     unregisterMediaButtonReceiver();
+    // Remember where we are, for the next start.
+    if (Core.client.currentFeed != null
+        && !waitingForArticles
+        && !Core.client.currentFeed.entries.isEmpty())
+      Core.saveFeed(Core.client.currentFeed, Core.client.currentIndex);
+    // We may not be back for a while.
+    Core.flushPendingOps();
     super.onStop();
   }
 
@@ -313,6 +344,10 @@ public class ArticleViewActivity extends Activity
 
   private void init() {
     if (Config.LOGD) Log.d(TAG, "init");
+    // Lists from last time make the feeds list usable, and articles
+    // show their feed title, before we've heard from the server.
+    if (!Core.client.haveSubscriptionsList && Core.store != null)
+      Core.store.loadLists(Core.client);
     if (Core.client.currentFeed != null
         && !Core.client.currentFeed.entries.isEmpty()) {
       // The activity is being re-instantiated inside a re-used
@@ -324,23 +359,77 @@ public class ArticleViewActivity extends Activity
       Core.client.currentFeed = Core.client.new ReaderAtomFeed();
       // Start by showing the reading list (called "All feeds" in  our menu).
       Core.client.currentFeed.id = Core.http.READING_LIST_STATE;
-      Core.login(
-          this, false,
-          new Runnable() {
-            public void run() {
-              getFeed(Core.http.READING_LIST_STATE, true);
-            }
-          });
+      if (Core.store != null) {
+        // Unless a feed was saved last time. It's read back in
+        // background, see MSG_LOADED_FEED.
+        waitingForArticles = true;
+        Core.loadStoredFeed(handler);
+      } else {
+        getReadingList();
+      }
     }
     SharedPreferences prefs
       = getSharedPreferences(Core.PREFS_NAME, MODE_PRIVATE);
     Core.autoForwardSetting = prefs.getBoolean(Core.PREFS_AUTO_FORWARD, false);
+    Core.readAheadSetting = prefs.getInt(Core.PREFS_READ_AHEAD,
+                                         Core.DEFAULT_READ_AHEAD);
+    Core.speechQueueSetting = prefs.getInt(Core.PREFS_SPEECH_QUEUE,
+                                           Core.DEFAULT_SPEECH_QUEUE);
     // First run experience: show help screen.
     boolean ranBefore = prefs.getBoolean(Core.PREFS_RAN_BEFORE, false);
     if (!ranBefore)
       launchHelp();
   }
 
+  private void getReadingList() {
+    Core.login(
+        this, false,
+        new Runnable() {
+          public void run() {
+            getFeed(Core.http.READING_LIST_STATE, true);
+          }
+        });
+  }
+
+  // Takes in the feed restored from the article store, if any.
+  private void onLoadedFeed(final ArticleStore.SavedFeed saved) {
+    waitingForArticles = false;
+    if (saved == null) {
+      getReadingList();
+      return;
+    }
+    // Warm start: show the articles we had last time right away,
+    // and freshen the lists and the feed's first page in background,
+    // see MSG_REFRESHED_FEED. More articles get fetched as usual once
+    // we near the end.
+    if (Config.LOGD) Log.d(TAG, "showing stored feed");
+    Core.client.currentFeed = saved.feed;
+    Core.client.currentIndex = saved.currentIndex;
+    showArticles();
+    Core.login(
+        this, false,
+        new Runnable() {
+          public void run() {
+            Core.getListsInfo(handler);
+            Core.refreshFeed(saved.feed, handler);
+          }
+        });
+  }
+
+  // Takes in the fresh first page of the restored feed.
+  private void onRefreshedFeed(ReaderAtomFeed atomFeed) {
+    if (atomFeed != Core.client.currentFeed)
+      return;
+    Core.client.currentIndex
+        = atomFeed.mergeRefresh(Core.client.currentIndex);
+    Core.saveFeed(atomFeed, Core.client.currentIndex);
+    if (talkingWebView != null) {
+      Button prev_article_btn = (Button)findViewById(R.id.art_prev);
+      prev_article_btn.setEnabled(Core.client.currentIndex != 0);
+      preParseNeighbours();
+    }
+  }
+
   private void getFeed(String feedId, boolean excludeRead) {
     showWorking(getString(R.string.getting_article_feed));
     showingEndOfFeed = false;
@@ -382,24 +471,38 @@ public class ArticleViewActivity extends Activity
                 }))
           return;
         switch (msg.what) {
+          case Core.MSG_LOADED_FEED:
+            onLoadedFeed((ArticleStore.SavedFeed)msg.obj);
+            break;
+          case Core.MSG_REFRESHED_FEED:
+            onRefreshedFeed((ReaderAtomFeed)msg.obj);
+            break;
+          case Core.MSG_FILLED_ARTICLES:
+            if (talkingWebView != null)
+              preParseNeighbours();
+            break;
           case Core.MSG_GOT_ARTICLES:
             ReaderAtomFeed atomFeed = (ReaderAtomFeed)msg.obj;
             if (atomFeed != Core.client.currentFeed) {
               if (Config.LOGD) Log.d(TAG, "Ignoring GOT_ARTICLES from interrupted thread");
               return;
             }
-            setProgressBarIndeterminateVisibility(false);
-            atomFeedBackup = null;
-            // If we were waiting on articles then show
-            // them. Otherwise the background thread did a second
-            // round and pushed more articles at us while we're
-            // viewing the first ones.
-            if (waitingForArticles) {
+            boolean done = msg.arg2 == Core.GOT_ARTICLES_DONE;
+            if (Config.LOGD) Log.d(TAG, String.format("MSG_GOT_ARTICLES: %d entries%s", msg.arg1, done ? ", done" : ""));
+            // Entries are delivered as they are parsed: start on the
+            // first one without waiting for the rest of the batch.
+            if (waitingForArticles && (done || !atomFeed.entries.isEmpty())) {
+              setProgressBarIndeterminateVisibility(false);
+              atomFeedBackup = null;
               waitingForArticles = false;
               Core.client.currentIndex = 0;
               showArticles();
-            } else if (showingEndOfFeed) {
-              // We were waiting on continuation.
+            } else if (showingEndOfFeed
+                       && (done || Core.client.currentIndex
+                           < atomFeed.entries.size())) {
+              // We were waiting on continuation. Otherwise the
+              // background thread is pushing more articles at us while
+              // we're viewing the first ones.
               showCurrentArticle(false);
             }
             break;
@@ -420,9 +523,13 @@ public class ArticleViewActivity extends Activity
     };
 
   private void showArticles() {
-    String feedTitle = Html.fromHtml(Core.client.currentFeed.title).toString();
-    setTitle(getString(R.string.app_name)
-             +": " +feedTitle);
+    // The title may not be known yet if we're showing entries before
+    // the whole feed was received.
+    if (Core.client.currentFeed.title != null) {
+      String feedTitle = Html.fromHtml(Core.client.currentFeed.title).toString();
+      setTitle(getString(R.string.app_name)
+               +": " +feedTitle);
+    }
 
     if (Core.client.currentIndex < 0
         || Core.client.currentIndex > Core.client.currentFeed.entries.size())
@@ -477,13 +584,12 @@ public class ArticleViewActivity extends Activity
                          article.link);
   }
 
-  private void showArticle(ArticleEntry article,
-                           final boolean isMediaCommand) {
-    if (Config.LOGD) Log.d(TAG, "showArticle: " + article.title +" tag " +article.tag);
-    setContentView(R.layout.article_view);
-    Button next_article_btn = (Button)findViewById(R.id.art_next);
-    Button prev_article_btn = (Button)findViewById(R.id.art_prev);
-    Button pause_btn = (Button)findViewById(R.id.pause_btn);
+  // Inflates the article layout, the first time an article is shown.
+  private void setupArticleView() {
+    articleView = getLayoutInflater().inflate(R.layout.article_view, null);
+    Button next_article_btn = (Button)articleView.findViewById(R.id.art_next);
+    Button prev_article_btn = (Button)articleView.findViewById(R.id.art_prev);
+    Button pause_btn = (Button)articleView.findViewById(R.id.pause_btn);
     next_article_btn.setOnClickListener(new Button.OnClickListener() {
         public void onClick(View v) {
           // It's easy to double-click by mistake and skip an article,
@@ -510,15 +616,27 @@ public class ArticleViewActivity extends Activity
           doPause();
         }
       });
-    if (Core.client.currentIndex == 0)
-      prev_article_btn.setEnabled(false);
+    WebView webView = (WebView)articleView.findViewById(R.id.articleBody);
+    articleSurface = new TalkingWebView.Surface(webView);
+  }
+
+  private void showArticle(ArticleEntry article,
+                           final boolean isMediaCommand) {
+    if (Config.LOGD) Log.d(TAG, "showArticle: " + article.title +" tag " +article.tag);
+    if (articleView == null)
+      setupArticleView();
+    // Unless another screen was shown in between, the layout is
+    // already up.
+    if (articleView.getParent() == null)
+      setContentView(articleView);
+    Button prev_article_btn = (Button)findViewById(R.id.art_prev);
+    prev_article_btn.setEnabled(Core.client.currentIndex != 0);
 
     String metaHtml = metaInfoHtml(article);
     if (Config.LOGD) Log.d(TAG, "meta: " +metaHtml);
-    String htmlInput = metaInfoHtml(article) + article.text;
+    String htmlInput = articleHtml(article);
     String baseUrl = article.baseUrl;
     String originalLink = originalLinkHtml(article);
-    WebView webView = (WebView) findViewById(R.id.articleBody);
 
     TalkingWebView.SpokenMessages msgs = new TalkingWebView.SpokenMessages();
     msgs.endOfPage = getString(R.string.end_of_article);
@@ -527,10 +645,6 @@ public class ArticleViewActivity extends Activity
     msgs.emptyArticle = getString(R.string.empty_article);
 
     TalkingWebView.Callback callback = new TalkingWebView.Callback() {
-        @Override
-        public void onParseError(HtmlParseException e) {
-          Core.showErrorDialog(ArticleViewActivity.this, e.getMessage(), null);
-        }
         @Override
         public boolean onViewReady() {
           timeLastTWVUserInteraction = 0;
@@ -562,11 +676,52 @@ public class ArticleViewActivity extends Activity
 
     talkingWebView = new TalkingWebView(
         this,
-        webView, tts, vibrator, powerManager,
+        articleSurface, tts, vibrator, powerManager,
         msgs, callback,
-        htmlInput, originalLink, baseUrl);
+        htmlInput, originalLink, baseUrl, article.tag);
 
     updateArticleIcons();
+    preParseNeighbours();
+  }
+
+  // The HTML we speak for an article.
+  private String articleHtml(ArticleEntry article) {
+    return metaInfoHtml(article) + article.text;
+  }
+
+  // Has the articles the user is likely to go to next parsed in
+  // background: the next few ones, and the previous one. Those that
+  // are restored stubs are read back first, and we come back here
+  // once they are.
+  private void preParseNeighbours() {
+    List<ArticleEntry> entries = Core.client.currentFeed.entries;
+    int index = Core.client.currentIndex;
+    ArrayList<String> keys = new ArrayList<String>();
+    ArrayList<String> htmlInputs = new ArrayList<String>();
+    ArrayList<ArticleEntry> stubs = new ArrayList<ArticleEntry>();
+    synchronized (entries) {
+      for (int i = Math.max(index - 1, 0);
+           i <= index + PRE_PARSE_AHEAD && i < entries.size(); ++i) {
+        if (entries.get(i).isStub)
+          stubs.add(entries.get(i));
+      }
+    }
+    if (!stubs.isEmpty()) {
+      Core.fillArticles(stubs, handler);
+      return;
+    }
+    synchronized (entries) {
+      for (int i = index + 1;
+           i <= index + PRE_PARSE_AHEAD && i < entries.size(); ++i) {
+        keys.add(entries.get(i).tag);
+        htmlInputs.add(articleHtml(entries.get(i)));
+      }
+      if (index > 0 && index - 1 < entries.size()) {
+        keys.add(entries.get(index - 1).tag);
+        htmlInputs.add(articleHtml(entries.get(index - 1)));
+      }
+    }
+    Core.preParse(keys, htmlInputs);
   }
 
   // Puts a star icon on starred articles. TODO: add read state and
@@ -679,9 +834,9 @@ public class ArticleViewActivity extends Activity
     if (Core.client.currentFeed.entries.isEmpty()) {
       Core.showErrorDialog(this, getString(R.string.no_articles), null);
     } else {
-      if (Core.client.currentIndex + 3
-          >= Core.client.currentFeed.entries.size())
-        // Nearing the end of this feed: fetch more articles if possible.
+      Core.paging.noteArticleShown(Core.client.currentIndex);
+      if (Core.needMoreArticles(Core.client.currentFeed))
+        // Running short of articles: fetch more if possible.
         getContinuationIfNeeded();
       if (talkingWebView != null) {
         // Stop talking and discard the previously shown article's
@@ -695,6 +850,8 @@ public class ArticleViewActivity extends Activity
       } else {
         showingEndOfFeed = false;
         ArticleEntry article = getCurrentArticle();
+        if (article.isStub)  // Restored: a single record to read.
+          Core.store.fillArticle(article);
         showArticle(article, isMediaCommand);
       }
     }
@@ -794,6 +951,25 @@ public class ArticleViewActivity extends Activity
     unregisterReceiver(mediaButtonReceiver);
   }
 
+  // Sends changes that were held while we had no connectivity.
+  BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent) {
+        if (!intent.getBooleanExtra(
+                ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+          if (Config.LOGD) Log.d(TAG, "Connectivity is back");
+          Core.flushPendingOps();
+        }
+      }
+    };
+  void registerConnectivityReceiver() {
+    registerReceiver(connectivityReceiver,
+                     new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+  }
+  void unregisterConnectivityReceiver() {
+    unregisterReceiver(connectivityReceiver);
+  }
+
   private void launchHelp() {
     Intent intent = new Intent(this, HelpActivity.class);
     intent.putExtra(EXTRA_HTML_RESOURCE, R.raw.help);
@@ -1120,6 +1296,11 @@ public class ArticleViewActivity extends Activity
         switch (resultCode) {
           case RESULT_OK:
             Core.client = new ReaderClientData();
+            // Articles stored for the previous account are of no use,
+            // and neither are its pending changes.
+            if (Core.store != null)
+              Core.store.clear();
+            Core.journal.clear();
             init();
             break;
         }
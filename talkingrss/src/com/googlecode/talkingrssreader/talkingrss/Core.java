@@ -81,6 +81,7 @@ import java.util.Date;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.text.Collator;
 
@@ -95,8 +96,8 @@ import com.googlecode.talkingrssreader.talkingrss.ReaderClientData.UserLabel;
 
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.ReaderException;
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.HttpUnauthorizedException;
+import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.HttpNotModifiedException;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker;
-import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.HtmlParseException;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.Utterance;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpokenText;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpeechElement;
@@ -111,9 +112,19 @@ public abstract class Core {
 
   static TextToSpeech tts;
   static KeyguardManager keyguardManager;
+  static ConnectivityManager connectivityManager;
 
   static ReaderHttp http = new ReaderHttp();
   static ReaderClientData client = new ReaderClientData();
+  // Persistent cache of articles. Set up by the main activity.
+  static ArticleStore store;
+  // Changes pending on the reader side. Set up by the main activity.
+  static OpJournal journal;
+  // Decides how many articles to fetch at a time.
+  static PagingPolicy paging = new PagingPolicy();
+  // Recently parsed articles, ready to be spoken.
+  static HtmlTalkerCache htmlTalkerCache = new HtmlTalkerCache();
+  static SpeechCache speechCache = new SpeechCache();
 
   static final String PREFS_NAME = "talkingrss";
   static final String PREFS_RAN_BEFORE = "ranBefore";
@@ -121,6 +132,8 @@ public abstract class Core {
   static final String PREFS_CLIENT_LOGIN_AUTH_TOKEN
     = "client_login_auth_token";
   static final String PREFS_AUTO_FORWARD = "auto_forward";
+  static final String PREFS_READ_AHEAD = "read_ahead";
+  static final String PREFS_SPEECH_QUEUE = "speech_queue";
 
   // Subactivity codes. We can call the login subactivity from any
   // activity (when the auth token expires), so the following request
@@ -135,6 +148,13 @@ public abstract class Core {
   static Context context;
 
   static boolean autoForwardSetting;
+  // Number of articles to keep fetched ahead of the reader.
+  static final int DEFAULT_READ_AHEAD = 10;
+  static int readAheadSetting = DEFAULT_READ_AHEAD;
+  // Number of utterances to keep queued for speech, including the one
+  // being spoken.
+  static final int DEFAULT_SPEECH_QUEUE = 4;
+  static int speechQueueSetting = DEFAULT_SPEECH_QUEUE;
 
   static String getString(int resourceId) {
     if (context == null)
@@ -168,6 +188,8 @@ public abstract class Core {
           loginPendingRunnable = null;
           r.run();
         }
+        // Retry what failed for lack of a valid auth token.
+        flushPendingOps();
         break;
       case Activity.RESULT_CANCELED:
         // Backing out of login: cancel calling activity.
@@ -332,12 +354,25 @@ public abstract class Core {
   // Handler message codes: errors or results from background tasks.
   static final int MSG_EXPIRED_AUTH = 1;
   static final int MSG_READER_ERROR = 2;
+  // obj is the feed, arg1 the number of entries it had when the
+  // message was sent, arg2 is GOT_ARTICLES_DONE at the end of a
+  // request, or GOT_ARTICLES_MORE while entries are still streaming
+  // in.
   static final int MSG_GOT_ARTICLES = 10;
+  static final int GOT_ARTICLES_MORE = 0;
+  static final int GOT_ARTICLES_DONE = 1;
   static final int MSG_GOT_LISTS_INFO = 11;
   static final int MSG_SUBSCRIBED_OK = 12;
   static final int MSG_TAGGED_OK = 13;
   static final int MSG_LOGGED_IN_OK = 14;
   static final int MSG_LOGIN_FAILED = 15;
+  // obj is the ArticleStore.SavedFeed, or null if there is none.
+  static final int MSG_LOADED_FEED = 16;
+  // The stubs passed to fillArticles() were read back.
+  static final int MSG_FILLED_ARTICLES = 17;
+  // obj is the feed passed to refreshFeed(), which now has its
+  // first page fetched again, for mergeRefresh().
+  static final int MSG_REFRESHED_FEED = 18;
 
   // Handle some errors from background tasks. Shared code between
   // several activities.
@@ -359,18 +394,33 @@ public abstract class Core {
     return false;  // Message code not handled here.
   }
 
-  // Background thread that fetches reader feeds. Has a corresponding
-  // httpclient instance in thread local storage in ReaderHttp. The
-  // thread stays alive between requests so the httpclient may
-  // reuse connections. If a new request comes in for a new
-  // feed while a previous request is being served, then the thread is
-  // killed and restarted.
+  // Background thread that fetches reader feeds. If a new request
+  // comes in for a new feed while a previous request is being served,
+  // then the previous request is cancelled: its HTTP request is
+  // aborted and its parse stops, and the thread moves on to the new
+  // request.
   static class FeedGetterThread extends HandlerThread {
-    // Command to fetch a feed.
+    // Command to fetch a feed. Argument: a FetchRequest.
     public static final int MSG_GET_ARTICLES = 1;
-    // Argument: feed to fecth. Set this before issuing the
-    // command. Cleared when done.
-    volatile ReaderAtomFeed atomFeed;
+    // Command to fetch the first page of a feed restored from the
+    // store again. Argument: a FetchRequest with |restored| set.
+    public static final int MSG_REFRESH = 2;
+    // A feed to fetch, and where to report.
+    static class FetchRequest {
+      ReaderAtomFeed atomFeed;
+      // For a refresh: the feed that |atomFeed| gets merged into.
+      ReaderAtomFeed restored;
+      Handler replyHandler;
+      ReaderHttp.Cancellation cancellation = new ReaderHttp.Cancellation();
+      FetchRequest(ReaderAtomFeed atomFeed, Handler replyHandler) {
+        this.atomFeed = atomFeed;
+        this.replyHandler = replyHandler;
+      }
+    }
+    // The latest request issued, cleared when done. Guarded by this.
+    private FetchRequest request;
+    // The refresh under way, if any. Guarded by this.
+    private FetchRequest refreshRequest;
     class MyHandler extends Handler {
       private MyHandler(Looper looper) {
         super(looper);
@@ -379,8 +429,10 @@ public abstract class Core {
       public void handleMessage(Message msg) {
         switch (msg.what) {
           case MSG_GET_ARTICLES:
-            Handler replyHandler = (Handler)msg.obj;
-            getArticles(replyHandler);
+            getArticles((FetchRequest)msg.obj);
+            break;
+          case MSG_REFRESH:
+            refreshFeed((FetchRequest)msg.obj);
             break;
         }
       }
@@ -391,7 +443,149 @@ public abstract class Core {
       start();
       handler = new MyHandler(getLooper());
     }
-    private void getArticles(Handler replyHandler) {
+
+    // Issues a request to fetch |atomFeed|, unless we're already at
+    // it. Cancels any request for another feed.
+    synchronized void fetch(ReaderAtomFeed atomFeed, Handler replyHandler) {
+      if (request != null) {
+        if (request.atomFeed == atomFeed)
+          return;
+        if (Config.LOGD) Log.d(TAG, "Cancelling fetch of previous feed");
+        request.cancellation.cancel();
+      }
+      if (refreshRequest != null && refreshRequest.restored != atomFeed) {
+        refreshRequest.cancellation.cancel();
+        refreshRequest = null;
+      }
+      request = new FetchRequest(atomFeed, replyHandler);
+      handler.sendMessage(handler.obtainMessage(MSG_GET_ARTICLES, request));
+    }
+
+    // Issues a request to fetch the first page of |restored| again.
+    synchronized void refresh(ReaderAtomFeed restored, Handler replyHandler) {
+      ReaderAtomFeed fresh = client.new ReaderAtomFeed();
+      fresh.id = restored.id;
+      fresh.excludeRead = restored.excludeRead;
+      refreshRequest = new FetchRequest(fresh, replyHandler);
+      refreshRequest.restored = restored;
+      handler.sendMessage(handler.obtainMessage(MSG_REFRESH, refreshRequest));
+    }
+
+    synchronized boolean isFetching(ReaderAtomFeed atomFeed) {
+      return request != null && request.atomFeed == atomFeed;
+    }
+
+    synchronized void cancel() {
+      if (request != null) {
+        request.cancellation.cancel();
+        request = null;
+      }
+      if (refreshRequest != null) {
+        refreshRequest.cancellation.cancel();
+        refreshRequest = null;
+      }
+    }
+
+    private synchronized void done(FetchRequest doneRequest) {
+      if (request == doneRequest)
+        request = null;
+      if (refreshRequest == doneRequest)
+        refreshRequest = null;
+    }
+
+    // Tells the UI about entries as they are parsed. Notifications
+    // are coalesced: while one is still pending in the reply handler's
+    // queue we don't post another, the UI will pick up all the entries
+    // available by the time it gets to it.
+    private static class EntryNotifier
+        implements ReaderClientData.EntryListener {
+      private Handler replyHandler;
+      EntryNotifier(Handler replyHandler) {
+        this.replyHandler = replyHandler;
+      }
+      public void onEntryAdded(ReaderAtomFeed feed, ArticleEntry entry) {
+        if (replyHandler.hasMessages(MSG_GOT_ARTICLES, feed))
+          return;
+        replyHandler.sendMessage(replyHandler.obtainMessage(
+            MSG_GOT_ARTICLES, feed.entries.size(), GOT_ARTICLES_MORE,
+            feed));
+      }
+    }
+
+    // Fetches and parses one page of the requested feed. The first
+    // page of a feed is kept, and if the server says it hasn't changed
+    // next time the same feed is fetched, it is reused as is. That
+    // first page keeps the size it was first fetched with, whatever
+    // |howMany| the paging policy now suggests.
+    private void fetchPage(FetchRequest request, String[] excludeStates,
+                           int howMany, String continuation,
+                           EntryNotifier notifier)
+        throws ReaderException {
+      ReaderAtomFeed atomFeed = request.atomFeed;
+      boolean revalidate = false;
+      if (continuation == null) {
+        int savedSize = atomFeed.firstPageSize();
+        if (savedSize > 0) {
+          howMany = savedSize;
+          revalidate = true;
+        }
+      }
+      try {
+        int nArticles = atomFeed.entries.size();
+        ReaderHttp.CountingInputStream is = http.getArticlesByTag(
+            atomFeed.id, excludeStates,
+            howMany, continuation, revalidate, request.cancellation);
+        atomFeed.parse(is, notifier, request.cancellation);
+        long now = SystemClock.uptimeMillis();
+        paging.noteFetch(is.getLatency(), now - is.getReadTime(),
+                         is.getWireCount(),
+                         atomFeed.entries.size() - nArticles);
+      } catch (HttpNotModifiedException e) {
+        if (!atomFeed.restoreFirstPage())
+          throw e;
+        if (Config.LOGD) Log.d(TAG, "First page not modified");
+        return;
+      }
+      if (continuation == null)
+        atomFeed.saveFirstPage(howMany);
+    }
+
+    // Fetches the first page of a restored feed again, so that new
+    // articles and read states from elsewhere show up. The UI merges
+    // it in. Nobody waits on it: failures are only logged, the feed
+    // then stays as restored.
+    private void refreshFeed(FetchRequest request) {
+      ReaderAtomFeed fresh = request.atomFeed;
+      if (request.cancellation.isCancelled())
+        return;
+      try {
+        if (Config.LOGD) Log.d(TAG, "FeedGetter refreshing");
+        final String[] excludeStates
+          = fresh.excludeRead ? new String[] { http.READ_STATE }
+            : null;
+        fetchPage(request, excludeStates, paging.firstPageSize(), null,
+                  null);
+        if (request.cancellation.isCancelled())
+          return;
+        storeArticles(fresh, 0);
+        request.restored.refresh = fresh;
+        request.replyHandler.sendMessage(request.replyHandler.obtainMessage(
+            MSG_REFRESHED_FEED, request.restored));
+      } catch (ReaderException e) {
+        Log.w(TAG, "Failed to refresh feed");
+        e.printStackTrace();
+      } finally {
+        done(request);
+      }
+    }
+
+    private void getArticles(FetchRequest request) {
+      ReaderAtomFeed atomFeed = request.atomFeed;
+      Handler replyHandler = request.replyHandler;
+      if (request.cancellation.isCancelled()) {
+        if (Config.LOGD) Log.d(TAG, "FeedGetter: skipping cancelled request");
+        return;
+      }
       String continuation = atomFeed.continuation;
       try {
         if (Config.LOGD) Log.d(TAG, "FeedGetter starting");
@@ -399,83 +593,176 @@ public abstract class Core {
         if (!atomFeed.entries.isEmpty() && atomFeed.continuation == null)
           throw new RuntimeException();
         int nArticles = atomFeed.entries.size();
+        EntryNotifier notifier = new EntryNotifier(replyHandler);
         final String[] excludeStates
           = atomFeed.excludeRead ? new String[] { http.READ_STATE }
             : null;
-        // Get just 5 to begin with. The user can start on those while
-        // we get more.
+        // Get just a few to begin with. The user can start on those
+        // while we get more.
         atomFeed.continuation = null;
-        String xmlString = http.getArticlesByTag(
-            atomFeed.id, excludeStates,
-            5, continuation);
-        atomFeed.parse(xmlString);
+        fetchPage(request, excludeStates,
+                  continuation == null ? paging.firstPageSize()
+                  : paging.pageSize(),
+                  continuation, notifier);
         int nNewArticles = atomFeed.entries.size() - nArticles;
         if (Config.LOGD) Log.d(TAG, String.format("Got %d new articles", nNewArticles));
+        storeArticles(atomFeed, nArticles);
         replyHandler.sendMessage(replyHandler.obtainMessage(
-                                     MSG_GOT_ARTICLES, atomFeed));
-        if (atomFeed.continuation != null) {
-          if (Config.LOGD) Log.d(TAG, "FeedGetter starting second round");
+            MSG_GOT_ARTICLES, atomFeed.entries.size(), GOT_ARTICLES_DONE,
+            atomFeed));
+        // Then keep reading ahead, one page after the other, as long
+        // as the user is short of articles.
+        while (atomFeed.continuation != null
+               && !request.cancellation.isCancelled()
+               && needMoreArticles(atomFeed)) {
+          if (Config.LOGD) Log.d(TAG, "FeedGetter reading ahead");
           continuation = atomFeed.continuation;
           atomFeed.continuation = null;
           nArticles = atomFeed.entries.size();
-          xmlString = http.getArticlesByTag(
-              atomFeed.id, excludeStates,
-              25, continuation);
-          atomFeed.parse(xmlString);
+          fetchPage(request, excludeStates, paging.pageSize(),
+                    continuation, notifier);
           nNewArticles = atomFeed.entries.size() - nArticles;
           if (Config.LOGD) Log.d(TAG, String.format("Got %d new articles", nNewArticles));
+          storeArticles(atomFeed, nArticles);
           replyHandler.sendMessage(replyHandler.obtainMessage(
-                                       MSG_GOT_ARTICLES, atomFeed));
+              MSG_GOT_ARTICLES, atomFeed.entries.size(), GOT_ARTICLES_DONE,
+              atomFeed));
         }
         if (Config.LOGD) Log.d(TAG, "FeedGetter done");
       } catch (HttpUnauthorizedException e) {
         if (Config.LOGD) Log.d(TAG, "FeedGetter: auth expired");
+        // Entries already parsed from the failed page stay: they may
+        // be on screen. The retry from |continuation| skips them.
         atomFeed.continuation = continuation;
         replyHandler.sendMessage(replyHandler.obtainMessage(MSG_EXPIRED_AUTH));
       } catch (ReaderException e) {
         atomFeed.continuation = continuation;
-        Log.w(TAG, "Got ReaderException");
-        e.printStackTrace();
-        replyHandler.sendMessage(replyHandler.obtainMessage(
-                                     MSG_READER_ERROR, e.getMessage()));
+        if (request.cancellation.isCancelled()) {
+          // The abort or the parse stop is expected, nobody wants
+          // to hear about it.
+          if (Config.LOGD) Log.d(TAG, "FeedGetter cancelled");
+        } else {
+          Log.w(TAG, "Got ReaderException");
+          e.printStackTrace();
+          replyHandler.sendMessage(replyHandler.obtainMessage(
+                                       MSG_READER_ERROR, e.getMessage()));
+        }
       } finally {
-        atomFeed = null;
+        done(request);
       }
     }
   }
   private static FeedGetterThread feedGetterThread;
 
+  // Saves newly fetched articles, from index |from| on, and the feed
+  // they belong to, for the next start.
+  private static void storeArticles(ReaderAtomFeed atomFeed, int from) {
+    ArticleStore store = Core.store;
+    if (store == null)
+      return;
+    ArrayList<ArticleEntry> newArticles;
+    synchronized (atomFeed.entries) {
+      newArticles = new ArrayList<ArticleEntry>(
+          atomFeed.entries.subList(from, atomFeed.entries.size()));
+    }
+    store.putArticles(newArticles);
+    if (atomFeed == client.currentFeed)
+      store.saveFeed(atomFeed, client.currentIndex);
+  }
+
+  // Restores the feed saved in the store from a previous run, in
+  // background. Answers with MSG_LOADED_FEED.
+  static void loadStoredFeed(final Handler replyHandler) {
+    final ArticleStore store = Core.store;
+    if (feedGetterThread == null)
+      feedGetterThread = new FeedGetterThread();
+    feedGetterThread.handler.post(new Runnable() {
+        public void run() {
+          ArticleStore.SavedFeed saved
+              = store == null ? null : store.loadFeed(client);
+          replyHandler.sendMessage(
+              replyHandler.obtainMessage(MSG_LOADED_FEED, saved));
+        }
+      });
+  }
+
+  // Saves the feed being read and the reading position, in
+  // background.
+  static void saveFeed(final ReaderAtomFeed atomFeed,
+                       final int currentIndex) {
+    final ArticleStore store = Core.store;
+    if (store == null || feedGetterThread == null)
+      return;
+    feedGetterThread.handler.post(new Runnable() {
+        public void run() {
+          store.saveFeed(atomFeed, currentIndex);
+        }
+      });
+  }
+
+  // Saves an article whose state changed, if we have it.
+  static void storeArticle(String itemTag) {
+    ArticleStore store = Core.store;
+    if (store == null)
+      return;
+    ArticleEntry article = client.articles.get(itemTag);
+    if (article != null)
+      store.putArticle(article);
+  }
+
   // Sends the command to request the current feed in background.
   static void getFeed(Handler replyHandler) {
-    if (feedGetterThread != null
-        && feedGetterThread.atomFeed != null) {
-      if (feedGetterThread.atomFeed == client.currentFeed)
-        return;
-      // There is an existing thread busy on a different feed: kill it.
-      feedGetterThread.getLooper().quit();
-      feedGetterThread.interrupt();
-      feedGetterThread = null;
-    }
     if (feedGetterThread == null) {
       feedGetterThread = new FeedGetterThread();
     }
-    feedGetterThread.atomFeed = client.currentFeed;
-    feedGetterThread.handler.sendMessage(
-        feedGetterThread.handler.obtainMessage(
-            feedGetterThread.MSG_GET_ARTICLES,
-            replyHandler));
+    feedGetterThread.fetch(client.currentFeed, replyHandler);
+  }
+
+  // Has the first page of |restored|, a feed restored from the
+  // store, fetched again in background, unless the user moved on to
+  // another feed. Answers with MSG_REFRESHED_FEED.
+  static void refreshFeed(ReaderAtomFeed restored, Handler replyHandler) {
+    if (restored != client.currentFeed)
+      return;
+    if (feedGetterThread == null)
+      feedGetterThread = new FeedGetterThread();
+    feedGetterThread.refresh(restored, replyHandler);
+  }
+
+  // Number of articles we want to have fetched beyond the reading
+  // position. On a metered network we only fetch as early as needed
+  // not to make the user wait.
+  static int readAheadTarget() {
+    int n = paging.prefetchTrigger();
+    if (!isNetworkMetered())
+      n = Math.max(n, readAheadSetting);
+    return n;
+  }
+
+  // Whether we should fetch more of |atomFeed| now.
+  static boolean needMoreArticles(ReaderAtomFeed atomFeed) {
+    if (atomFeed != client.currentFeed)
+      return false;
+    return client.currentIndex + readAheadTarget() >= atomFeed.entries.size();
+  }
+
+  // We have no way to know whether the user pays by the byte, assume
+  // they do unless on wifi.
+  static boolean isNetworkMetered() {
+    if (connectivityManager == null)
+      return true;
+    NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+    return info == null || info.getType() != ConnectivityManager.TYPE_WIFI;
   }
 
   static boolean isGettingFeed() {
     return feedGetterThread != null
-      && feedGetterThread.atomFeed == client.currentFeed;
+      && feedGetterThread.isFetching(client.currentFeed);
   }
 
   // Background thread that handles assorted reader requests: getting
   // subscriptions and other lists, subscribing and tagging. This one
-  // also has a corresponding httpclient in thread local storage in
-  // ReaderHttp. But this one we don't interrupt, we wait for each
-  // operation to complete.
+  // we don't interrupt, we wait for each operation to complete.
   static class ReaderOpsThread extends HandlerThread {
     // Commands and arguments:
     public static final int MSG_LOGIN = 1;
@@ -546,10 +833,49 @@ public abstract class Core {
       }
     }
     MyHandler handler;
+    // Helpers that fetch the lists concurrently on behalf of this
+    // thread.
+    private ListFetcherThread[] listFetcherThreads;
     public ReaderOpsThread() {
       super("ReaderOpsThread");
       start();
       handler = new MyHandler(getLooper());
+      listFetcherThreads = new ListFetcherThread[NUM_LIST_FETCHER_THREADS];
+      for (int i = 0; i < listFetcherThreads.length; ++i)
+        listFetcherThreads[i] = new ListFetcherThread(i);
+    }
+    void quitHelpers() {
+      for (ListFetcherThread thread : listFetcherThreads)
+        thread.getLooper().quit();
+    }
+
+    // Fetches one list, on one of the listFetcherThreads.
+    // If we have the list from last time, it is only downloaded again
+    // if it has changed.
+    private static class ListFetch implements Runnable {
+      private String list;
+      private String cached;  // may be null
+      private CountDownLatch done;
+      String result;
+      boolean notModified;
+      ReaderException exception;
+      ListFetch(String list, String cached, CountDownLatch done) {
+        this.list = list;
+        this.cached = cached;
+        this.done = done;
+      }
+      public void run() {
+        try {
+          result = http.getList(list, cached != null);
+        } catch (HttpNotModifiedException e) {
+          result = cached;
+          notModified = true;
+        } catch (ReaderException e) {
+          exception = e;
+        } finally {
+          done.countDown();
+        }
+      }
     }
 
     private void doClientLogin(String email, String password,
@@ -571,12 +897,53 @@ public abstract class Core {
             MSG_READER_ERROR, e.getMessage()));
       }
     }
+    // Fetches the three lists concurrently, then parses them in order.
     private void doGetListsInfo()
         throws HttpUnauthorizedException, ReaderException {
-      String xmlString1 = http.getList(http.TAG_LIST);
-      String xmlString2 = http.getList(http.SUBSCRIPTION_LIST);
-      String xmlString3 = http.getList(http.UNREAD_COUNT_LIST);
-      client.resetListsInfo(xmlString1, xmlString2, xmlString3);
+      long startTime = SystemClock.uptimeMillis();
+      String[] lists = new String[] {
+        http.TAG_LIST, http.SUBSCRIPTION_LIST, http.UNREAD_COUNT_LIST };
+      String[] cached = client.listsXml;
+      ListFetch[] fetches = new ListFetch[lists.length];
+      CountDownLatch done = new CountDownLatch(lists.length);
+      for (int i = 0; i < lists.length; ++i) {
+        fetches[i] = new ListFetch(lists[i],
+                                   cached != null ? cached[i] : null, done);
+        if (i < listFetcherThreads.length)
+          listFetcherThreads[i].handler.post(fetches[i]);
+        else
+          fetches[i].run();
+      }
+      // This thread does nothing meanwhile, so it's OK to just wait.
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException e) {}
+      }
+      boolean allNotModified = true;
+      String[] results = new String[lists.length];
+      boolean[] modified = new boolean[lists.length];
+      for (int i = 0; i < lists.length; ++i) {
+        if (fetches[i].exception != null)
+          throw fetches[i].exception;
+        allNotModified &= fetches[i].notModified;
+        results[i] = fetches[i].result;
+        modified[i] = !fetches[i].notModified;
+      }
+      long now = SystemClock.uptimeMillis();
+      if (Config.LOGD) Log.d(TAG, String.format("Fetched lists in %dms", now-startTime));
+      if (allNotModified) {
+        // What we have is still current, nothing to parse.
+        if (Config.LOGD) Log.d(TAG, "Lists not modified");
+        return;
+      }
+      // Only the lists that changed are parsed again.
+      client.resetListsInfo(results, modified);
+      // Keep a copy for the next start.
+      ArticleStore store = Core.store;
+      if (store != null)
+        store.saveLists(client);
     }
     private void getListsInfo(Handler replyHandler) {
       try {
@@ -598,8 +965,14 @@ public abstract class Core {
     }
     private void doSubscribe(String feedId, boolean isSubscribe,
                              Handler replyHandler) {
+      OpJournal.Op op = journal.add(
+          OpJournal.SUBSCRIBE, feedId, null, isSubscribe, true);
       try {
-        http.subscribeFeed(feedId, isSubscribe);
+        if (op != null) {
+          http.subscribeFeed(feedId, isSubscribe);
+          journal.done(op);
+          op = null;
+        }
         // Get subscription list back.
         if (Config.LOGD) Log.d(TAG, "Freshening lists");
         doGetListsInfo();
@@ -615,23 +988,22 @@ public abstract class Core {
         e.printStackTrace();
         replyHandler.sendMessage(replyHandler.obtainMessage(
                                      MSG_READER_ERROR, e.getMessage()));
+      } finally {
+        if (op != null)
+          opFailed(op);
       }
     }
     private void doTagItem(TagItemArgs args) {
+      OpJournal.Op op = journal.add(
+          OpJournal.TAG_ITEM, args.itemId, args.tag, args.add, true);
       try {
-        ArrayList<String> items = new ArrayList<String>(1);
-        items.add(args.itemId);
-        String[] tags = new String[] { args.tag };
-        http.tagItems(items,
-                      args.add ? tags : null,
-                      args.add ? null : tags);
-        // Modify cached state correspondingly.
-        ArticleEntry article = client.articles.get(args.itemId);
-        if (article != null) {
-          if (args.add)
-            article.categories.add(args.tag);
-          else
-            article.categories.remove(args.tag);
+        if (op != null) {
+          sendTagItem(args.itemId, args.add, args.tag);
+          journal.done(op);
+          op = null;
+        } else {
+          // Cancelled out a pending opposite operation.
+          updateTagState(args.itemId, args.add, args.tag);
         }
         args.replyHandler.sendMessage(args.replyHandler.obtainMessage(
             MSG_TAGGED_OK, args));
@@ -644,11 +1016,55 @@ public abstract class Core {
         e.printStackTrace();
         args.replyHandler.sendMessage(args.replyHandler.obtainMessage(
             MSG_READER_ERROR, e.getMessage()));
+      } finally {
+        if (op != null)
+          opFailed(op);
       }
     }
   }
+
+  // Tags an article, and records its new state.
+  private static void sendTagItem(String itemId, boolean add, String tag)
+      throws ReaderException {
+    ArrayList<String> items = new ArrayList<String>(1);
+    items.add(itemId);
+    String[] tags = new String[] { tag };
+    http.tagItems(items, add ? tags : null, add ? null : tags);
+    updateTagState(itemId, add, tag);
+  }
+  // Modify cached state correspondingly.
+  private static void updateTagState(String itemId, boolean add, String tag) {
+    ArticleEntry article = client.articles.get(itemId);
+    if (article != null) {
+      if (add)
+        article.categories.add(tag);
+      else
+        article.categories.remove(tag);
+      storeArticle(itemId);
+    }
+  }
+
+  // Leaves a failed operation for readMarkerThread to retry later.
+  private static void opFailed(OpJournal.Op op) {
+    journal.failed(op);
+    ReadMarkerThread thread = readMarkerThread;
+    if (thread != null)
+      thread.poke(null, false);
+  }
   private static ReaderOpsThread readerOpsThread;
 
+  // Worker threads used by ReaderOpsThread to fetch the lists in
+  // parallel, each over its own pooled connection.
+  private static final int NUM_LIST_FETCHER_THREADS = 3;
+  static class ListFetcherThread extends HandlerThread {
+    Handler handler;
+    ListFetcherThread(int n) {
+      super("ListFetcherThread" + n);
+      start();
+      handler = new Handler(getLooper());
+    }
+  }
+
   // Request to perform a client login in background.
   static void clientLogin(String email, String password,
                           Handler replyHandler) {
@@ -686,110 +1102,289 @@ public abstract class Core {
             ReaderOpsThread.MSG_TAG_ITEM, args));
   }
 
-  // Background thread that marks articles as read. This one handles a
-  // queue of requests.
-
-  // I'm seeing seemingly spurious exceptions from
-  // LinkedBlockingQueue. So I just rolled my own, it's not rocket
-  // science.
-  private static class QueueItem {
-    String item;  // article tag
-    QueueItem next;
-    QueueItem(String item) {
-      this.item = item;
-    }
-  }
-
+  // Background thread that sends the operations in the journal: it
+  // marks articles as read in batches, and retries or replays (from a
+  // previous run) tagging and subscribing.
   static class ReadMarkerThread extends Thread {
     volatile boolean quit;  // Indication to terminate.
-    QueueItem queueHead, queueTail;
+    boolean flushRequested;
     Object queueLock = new Object();
+    // Read marks from the UI thread, yet to be written to the journal
+    // from this thread, with the time each was queued so that the
+    // oldest mark's delay runs from then. Under queueLock, like
+    // |poked|, which tells there's something new since we last looked.
+    private ArrayList<String> newMarks = new ArrayList<String>();
+    private ArrayList<Long> newMarkTimes = new ArrayList<Long>();
+    private boolean poked;
     private Handler errorHandler;
+    private int requests, itemsMarked;
     ReadMarkerThread(Handler errorHandler) {
       this.errorHandler = errorHandler;
     }
     public void run() {
-      final String[] addStates = new String[] { http.READ_STATE };
-      final String[] removeStates = new String[] { http.FRESH_STATE };
-      ArrayList<String> itemsToMark = new ArrayList<String>();
-      // Stop when quit is set but only after finishing processing the
-      // entire queue.
-      while (!(quit && queueHead == null)) {
+      while (!quit) {
+        boolean force;
         synchronized (queueLock) {
-          if (queueHead == null) {
-            // Queue is empty, wait.
-            try {
-              queueLock.wait();
-            } catch (InterruptedException e) {}
-            continue;
-          }
-          // Google Reader will accept a batch of articles in one request.
-          while (queueHead != null
-                 && itemsToMark.size() < http.MAX_NUM_ITEMS_TO_TAG) {
-            itemsToMark.add(queueHead.item);
-            queueHead = queueHead.next;
-          }
-          if (queueHead == null)
-            queueTail = null;
+          force = flushRequested;
+          flushRequested = false;
+          poked = false;
         }  // End of locked block.
-        if (Config.LOGD) Log.d(TAG, String.format("readMarkerThread: marking %d items", itemsToMark.size()));
-        try {
-          http.tagItems(itemsToMark, addStates, removeStates);
-          itemsToMark.clear();
-        } catch (HttpUnauthorizedException e) {
-          if (Config.LOGD) Log.d(TAG, "ReadMarkerThread: auth expired");
+        journalNewMarks();
+        long wait = journal.timeToSend(force);
+        if (wait == -1 && !isNetworkConnected()) {
+          // Not even when forced, it could only fail. Connectivity
+          // coming back flushes.
+          wait = OpJournal.MAX_MARK_DELAY;
+        }
+        if (wait >= 0) {
+          synchronized (queueLock) {
+            if (!poked && !quit) {
+              try {
+                queueLock.wait(wait);
+              } catch (InterruptedException e) {}
+            }
+          }  // End of locked block.
+          continue;
+        }
+        sendDue(force, true);
+      }
+      // Once quit is set, send everything, ignoring backoff, until
+      // nothing is left or a send fails. Nobody is there to hear about
+      // failures: what isn't sent stays in the journal for the next
+      // start.
+      journalNewMarks();
+      while (isNetworkConnected() && journal.timeToSend(true) == -1) {
+        if (!sendDue(true, false))
+          break;
+      }
+      if (Config.LOGD) Log.d(TAG, "readMarkerThread quitting");
+    }
+    // Writes the read marks from the UI thread to the journal. The
+    // journal does disk writes: not under queueLock, which the UI
+    // thread takes.
+    private void journalNewMarks() {
+      ArrayList<String> itemsRead;
+      ArrayList<Long> readTimes;
+      synchronized (queueLock) {
+        itemsRead = newMarks;
+        readTimes = newMarkTimes;
+        newMarks = new ArrayList<String>();
+        newMarkTimes = new ArrayList<Long>();
+      }  // End of locked block.
+      for (int i = 0; i < itemsRead.size(); ++i)
+        journal.add(OpJournal.MARK_READ, itemsRead.get(i), null,
+                    true, false, readTimes.get(i));
+    }
+    // Sends what is due, with |report|ing of failures to
+    // errorHandler. Returns false if anything failed.
+    private boolean sendDue(boolean force, boolean report) {
+      // Google Reader will accept a batch of articles in one request.
+      ArrayList<OpJournal.Op> ops
+        = journal.takeDue(force, http.MAX_NUM_ITEMS_TO_TAG);
+      ArrayList<OpJournal.Op> marks = new ArrayList<OpJournal.Op>();
+      boolean ok = true;
+      for (OpJournal.Op op : ops) {
+        if (op.kind == OpJournal.MARK_READ) {
+          marks.add(op);
+        } else {
+          ArrayList<OpJournal.Op> single = new ArrayList<OpJournal.Op>(1);
+          single.add(op);
+          ok &= send(single, report);
+        }
+      }
+      if (!marks.isEmpty())
+        ok &= send(marks, report);
+      return ok;
+    }
+    // Wakes up the thread to look at the journal again, with |item|
+    // to mark as read if not null.
+    void poke(String item, boolean flush) {
+      synchronized (queueLock) {
+        if (item != null) {
+          newMarks.add(item);
+          newMarkTimes.add(SystemClock.uptimeMillis());
+        }
+        flushRequested |= flush;
+        poked = true;
+        queueLock.notifyAll();
+      }  // End of locked block.
+    }
+    // Sends either a batch of read marks or a single other
+    // operation. Returns false on failure.
+    private boolean send(ArrayList<OpJournal.Op> ops, boolean report) {
+      OpJournal.Op first = ops.get(0);
+      try {
+        switch (first.kind) {
+          case OpJournal.MARK_READ: {
+            if (Config.LOGD) Log.d(TAG, String.format("readMarkerThread: marking %d items", ops.size()));
+            ArrayList<String> itemsToMark = new ArrayList<String>(ops.size());
+            for (OpJournal.Op op : ops)
+              itemsToMark.add(op.item);
+            http.tagItems(itemsToMark, new String[] { http.READ_STATE },
+                          new String[] { http.FRESH_STATE });
+            ++requests;
+            itemsMarked += itemsToMark.size();
+            if (Config.LOGD) Log.d(TAG, String.format("readMarkerThread: %d items marked in %d requests", itemsMarked, requests));
+            // Remember the read state, so these become candidates for
+            // eviction from the store.
+            for (String item : itemsToMark)
+              storeArticle(item);
+            break;
+          }
+          case OpJournal.TAG_ITEM:
+            if (Config.LOGD) Log.d(TAG, String.format("readMarkerThread: tagging %s", first.item));
+            sendTagItem(first.item, first.add, first.tag);
+            break;
+          case OpJournal.SUBSCRIBE:
+            if (Config.LOGD) Log.d(TAG, String.format("readMarkerThread: subscribing to %s", first.item));
+            http.subscribeFeed(first.item, first.add);
+            break;
+        }
+        journal.done(ops);
+        return true;
+      } catch (HttpUnauthorizedException e) {
+        if (Config.LOGD) Log.d(TAG, "ReadMarkerThread: auth expired");
+        if (journal.failed(ops) && report)
           errorHandler.sendMessage(
               errorHandler.obtainMessage(MSG_EXPIRED_AUTH));
-        } catch (ReaderException e) {
-          Log.w(TAG, "Got ReaderException");
-          e.printStackTrace();
+      } catch (ReaderException e) {
+        Log.w(TAG, "Got ReaderException");
+        e.printStackTrace();
+        // Retries are silent.
+        if (journal.failed(ops) && report)
           errorHandler.sendMessage(
               errorHandler.obtainMessage(MSG_READER_ERROR, e.getMessage()));
-        }
       }
-      if (Config.LOGD) Log.d(TAG, "readMarkerThread quitting");
+      return false;
     }
   }
   static ReadMarkerThread readMarkerThread;
 
-  // Enqueue an article to be marked as read in background.
+  // Enqueue an article to be marked as read in background. Called on
+  // the UI thread: the journal is written from readMarkerThread.
   static void markAsRead(String itemTag) {
-    if (readMarkerThread != null) {
-      QueueItem qi = new QueueItem(itemTag);
-      synchronized (readMarkerThread.queueLock) {
-        if (readMarkerThread.queueTail == null)
-          readMarkerThread.queueHead = readMarkerThread.queueTail = qi;
-        else
-          readMarkerThread.queueTail.next = qi;
-        readMarkerThread.queueLock.notifyAll();
-      }  // End of locked block.
-    }
+    if (readMarkerThread != null)
+      readMarkerThread.poke(itemTag, false);
+  }
+
+  // Have pending operations sent now.
+  static void flushPendingOps() {
+    if (readMarkerThread != null)
+      readMarkerThread.poke(null, true);
+  }
+
+  static boolean isNetworkConnected() {
+    if (connectivityManager == null)
+      return true;
+    NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+    return info != null && info.isConnected();
   }
 
   // Stop all threads on app exit. ReadMarkerThread will try to finish
   // its work before exiting.
   static void stopThreads() {
+    if (preParserThread != null) {
+      preParserThread.getLooper().quit();
+      preParserThread = null;
+    }
     if (feedGetterThread != null) {
+      feedGetterThread.cancel();
       feedGetterThread.getLooper().quit();
       feedGetterThread.interrupt();
       feedGetterThread = null;
     }
     if (readerOpsThread != null) {
+      readerOpsThread.quitHelpers();
       readerOpsThread.getLooper().quit();
       readerOpsThread.interrupt();
       readerOpsThread = null;
     }
     if (readMarkerThread != null) {
       readMarkerThread.quit = true;
-      synchronized (readMarkerThread.queueLock) {
-        readMarkerThread.queueLock.notifyAll();
-      }
+      readMarkerThread.poke(null, false);
       readMarkerThread = null;
     }
   }
+  // Low priority background thread that parses the HTML of articles
+  // the user is likely to go to next, and leaves the results in
+  // htmlTalkerCache.
+  static class PreParserThread extends HandlerThread {
+    Handler handler;
+    PreParserThread() {
+      super("PreParserThread", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+      start();
+      handler = new Handler(getLooper());
+    }
+  }
+  private static PreParserThread preParserThread;
+
+  // Number of utterances from the start of the next article to have
+  // synthesized ahead.
+  static final int SYNTHESIZE_NEXT_ARTICLE_UTTERANCES = 3;
+
+  // Requests the parsing of some articles in background, in order:
+  // |keys| are the names for htmlTalkerCache and |htmlInputs| the
+  // corresponding HTML. Replaces any previous requests not yet
+  // started. The first article is taken to be the next one, whose
+  // start speechCache may synthesize.
+  static void preParse(ArrayList<String> keys, ArrayList<String> htmlInputs) {
+    if (preParserThread == null)
+      return;
+    preParserThread.handler.removeCallbacksAndMessages(null);
+    speechCache.setNextArticle(new ArrayList<String>());
+    for (int i = 0; i < keys.size(); ++i) {
+      final String key = keys.get(i);
+      final String htmlInput = htmlInputs.get(i);
+      final boolean isNext = i == 0;
+      preParserThread.handler.post(new Runnable() {
+          public void run() {
+            if (htmlTalkerCache.contains(key, htmlInput)) {
+              if (isNext)
+                setNextArticle(htmlTalkerCache.get(key, htmlInput));
+              return;
+            }
+            long startTime = SystemClock.uptimeMillis();
+            HtmlTalker htmlTalker = HtmlTalker.parse(htmlInput);
+            long now = SystemClock.uptimeMillis();
+            if (Config.LOGD) Log.d(TAG, String.format("Pre-parsed html in %dms", now-startTime));
+            htmlTalkerCache.put(key, htmlInput, htmlTalker);
+            if (isNext)
+              setNextArticle(htmlTalker);
+          }
+        });
+    }
+  }
+
+  // Has restored stubs read back from the store in background, in
+  // place of pre-parsing. Replaces any previous pre-parse requests not
+  // yet started. Answers with MSG_FILLED_ARTICLES.
+  static void fillArticles(final ArrayList<ArticleEntry> stubs,
+                           final Handler replyHandler) {
+    final ArticleStore store = Core.store;
+    if (preParserThread == null || store == null)
+      return;
+    preParserThread.handler.removeCallbacksAndMessages(null);
+    preParserThread.handler.post(new Runnable() {
+        public void run() {
+          for (ArticleEntry stub : stubs)
+            store.fillArticle(stub);
+          replyHandler.sendMessage(
+              replyHandler.obtainMessage(MSG_FILLED_ARTICLES));
+        }
+      });
+  }
+
+  private static void setNextArticle(HtmlTalker htmlTalker) {
+    if (htmlTalker != null) {
+      speechCache.setNextArticle(SpeechCache.spokenTexts(
+          htmlTalker.utterances, 0, SYNTHESIZE_NEXT_ARTICLE_UTTERANCES));
+    }
+  }
+
   // Start threads on app init.
   static void startThreads(Handler errorHandler) {
     stopThreads();
+    preParserThread = new PreParserThread();
     feedGetterThread = new FeedGetterThread();
     readerOpsThread = new ReaderOpsThread();
     readMarkerThread = new ReadMarkerThread(errorHandler);
@@ -83,7 +83,6 @@ import com.googlecode.talkingrssreader.talkingrss.ReaderClientData.UserLabel;
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.ReaderException;
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.HttpUnauthorizedException;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker;
-import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.HtmlParseException;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.Utterance;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpokenText;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpeechElement;
@@ -64,7 +64,6 @@ import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.UnexpectedExc
 import com.googlecode.talkingrssreader.talkingrss.TalkingWebView;
 
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker;
-import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.HtmlParseException;
 
 import com.googlecode.talkingrssreader.talkingrss.KeyHandling;
 import com.googlecode.talkingrssreader.talkingrss.KeyHandling.ContentActionHandler;
@@ -168,10 +167,6 @@ public class HelpActivity extends Activity
     msgs.emptyArticle = getString(R.string.empty_article);
 
     TalkingWebView.Callback callback = new TalkingWebView.Callback() {
-        @Override
-        public void onParseError(HtmlParseException e) {
-          Core.showErrorDialog(HelpActivity.this, e.getMessage(), null);
-        }
         @Override
         public boolean onViewReady() {
           dismissDialog(READYING_DIALOG);
@@ -191,7 +186,7 @@ public class HelpActivity extends Activity
         this,
         webView, Core.tts, vibrator, powerManager,
         msgs, callback,
-        html, "", null);
+        html, "", null, "res:" + htmlResource);
 
     Button closeBtn = (Button)findViewById(R.id.help_dismiss);
     closeBtn.setOnClickListener(new Button.OnClickListener() {
@@ -22,26 +22,11 @@
 
 package com.googlecode.talkingrssreader.talkingrss;
 
-import org.htmlparser.Node;
-import org.htmlparser.nodes.TextNode;
-import org.htmlparser.nodes.RemarkNode;
-import org.htmlparser.nodes.TagNode;
-import org.htmlparser.Attribute;
-import org.htmlparser.Parser;
-import org.htmlparser.util.NodeList;
-import org.htmlparser.util.ParserException;
+import org.htmlparser.util.CharacterReference;
 import org.htmlparser.util.Translate;
-import org.htmlparser.tags.CompositeTag;
-import org.htmlparser.tags.Html;
-import org.htmlparser.tags.Span;
-import org.htmlparser.PrototypicalNodeFactory;
 
-import java.util.Vector;
 import java.util.HashMap;
-import java.util.Enumeration;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 import android.util.Config;
 import android.util.Log;
@@ -65,34 +50,6 @@ import android.util.Log;
 public class HtmlTalker {
   private static final String TAG = "talkingrss-html";
 
-  // Adds htmlparser support for blockquote.
-  public static class BlockQuoteTag extends CompositeTag {
-    private static final String[] mIds = new String[] {"BLOCKQUOTE"};    
-    private static final String[] mEnders = new String[] {"ADDRESS", "BLOCKQUOTE", "NOFRAMES", };
-    private static final String[] mEndTagEnders = new String[] {"BODY", "HTML"};
-    public BlockQuoteTag() {
-    }
-    public String[] getIds ()
-    {
-      return (mIds);
-    }
-    public String[] getEnders ()
-    {
-      return (mEnders);
-    }
-    public String[] getEndTagEnders ()
-    {
-      return (mEndTagEnders);
-    }
-  }
-
-  // Exception on parsing failure.
-  public static class HtmlParseException extends Exception {
-    public HtmlParseException(Throwable cause) {
-      super(cause);
-    }
-  }
-
   // The output of the parse is a series of utterances, and each
   // utterance is a series of SpeechElements.
   public static abstract class SpeechElement {
@@ -170,28 +127,158 @@ public class HtmlTalker {
       this.end = end;
     }
   }
-  private static HashMap<String, IndicationsInfo> indications;
+
+  // What we know about an HTML tag, by name.
+  private static class TagType {
+    String name;
+    boolean breaksFlow;
+    // An element with content, ended by its end tag. Other tags,
+    // including all those we don't know, stand alone, and so do their
+    // end tags.
+    boolean container;
+    // Start tags and end tags that implicitly end this element.
+    TagType[] enders = new TagType[0];
+    TagType[] endTagEnders = new TagType[0];
+    IndicationsInfo indications;
+    TagType(String name) {
+      this.name = name;
+    }
+  }
+
+  /* These are the nesting rules of the htmlparser library, which we
+     used to build a document tree with, quirks included: a <p> is
+     ended by a <div>, a nested <blockquote> ends the enclosing one,
+     and an element left open when an enclosing element's end tag
+     shows up gets a made up end tag. Both the spoken output and the
+     HTML we show depend on them, so they must not change. */
+  private static HashMap<String, TagType> tagTypes
+      = new HashMap<String, TagType>();
+  // Same, indexed by name length, for looking up names in the input.
+  private static TagType[][] tagTypesByLength;
+
+  private static TagType tagType(String name) {
+    TagType type = tagTypes.get(name);
+    if (type == null) {
+      type = new TagType(name);
+      tagTypes.put(name, type);
+    }
+    return type;
+  }
+  private static TagType[] tagTypeList(String names) {
+    if (names.length() == 0)
+      return new TagType[0];
+    String[] split = names.split(" ");
+    TagType[] types = new TagType[split.length];
+    for (int i = 0; i < split.length; ++i)
+      types[i] = tagType(split[i]);
+    return types;
+  }
+  private static void container(String names, String enders,
+                                String endTagEnders) {
+    for (String name : names.split(" ")) {
+      TagType type = tagType(name);
+      type.container = true;
+      type.enders = tagTypeList(enders);
+      type.endTagEnders = tagTypeList(endTagEnders);
+    }
+  }
+
+  private static final TagType A, IMG, SCRIPT, STYLE, IFRAME;
   static {
-    indications = new HashMap<String, IndicationsInfo>();
-    indications.put(
-        "BLOCKQUOTE", new IndicationsInfo(
-            SpokenIndication.beginQuote, SpokenIndication.endQuote));
-    indications.put(
-        "TABLE", new IndicationsInfo(
-            SpokenIndication.beginTable, SpokenIndication.endTable));
+    container("A", "A P DIV TD TR FORM LI",
+              "P DIV TD TR FORM LI BODY HTML");
+    container("APPLET DIV DL OBJECT OL UL TABLE", "", "BODY HTML");
+    container("BLOCKQUOTE", "ADDRESS BLOCKQUOTE NOFRAMES", "BODY HTML");
+    container("BODY", "BODY", "HTML");
+    container("DD DT", "DD DT", "DL BODY HTML");
+    container("FORM", "FORM", "HTML BODY TABLE");
+    container("FRAMESET", "", "HTML");
+    container("H1 H2 H3 H4 H5 H6", "H1 H2 H3 H4 H5 H6 PARAM", "BODY HTML");
+    container("HEAD", "HEAD BODY", "HTML");
+    container("HTML SPAN", "", "");
+    container("LABEL", "LABEL", "");
+    container("LI", "LI", "UL OL BODY HTML");
+    container("OPTION", "INPUT TEXTAREA SELECT OPTION",
+              "SELECT FORM BODY HTML");
+    container("P", "ADDRESS BLOCKQUOTE CENTER DD DIR DIV DL DT FIELDSET"
+              + " FORM H1 H2 H3 H4 H5 H6 HR ISINDEX LI MENU NOFRAMES OL P"
+              + " PARAM PRE UL",
+              "BODY HTML");
+    container("SELECT", "INPUT TEXTAREA SELECT", "FORM BODY HTML");
+    container("TD", "TD TR TBODY TFOOT THEAD",
+              "TR TBODY TFOOT THEAD TABLE");
+    container("TEXTAREA", "INPUT TEXTAREA SELECT OPTION", "FORM BODY HTML");
+    container("TH", "TH TR TBODY TFOOT THEAD", "TR TBODY TFOOT THEAD TABLE");
+    container("TITLE", "TITLE BODY", "HEAD HTML");
+    container("TR", "TBODY TFOOT THEAD", "TBODY TFOOT THEAD TABLE");
+    for (TagType type : tagTypeList(
+             "BLOCKQUOTE BODY BR CENTER DD DIR DIV DL DT FORM H1 H2 H3 H4"
+             + " H5 H6 HEAD HR HTML ISINDEX LI MENU NOFRAMES OL P PRE TD TH"
+             + " TITLE UL"))
+      type.breaksFlow = true;
+
+    tagType("BLOCKQUOTE").indications = new IndicationsInfo(
+        SpokenIndication.beginQuote, SpokenIndication.endQuote);
+    tagType("TABLE").indications = new IndicationsInfo(
+        SpokenIndication.beginTable, SpokenIndication.endTable);
     // TODO: nice, but ought not to have breakflow before it.
-    indications.put(
-        "LI", new IndicationsInfo(
-            EarconIndication.list_item, null));
+    tagType("LI").indications = new IndicationsInfo(
+        EarconIndication.list_item, null);
+
+    A = tagType("A");
+    IMG = tagType("IMG");
+    // The content of these is raw text, up to the next end tag.
+    SCRIPT = tagType("SCRIPT");
+    STYLE = tagType("STYLE");
+    IFRAME = tagType("IFRAME");
+
+    int maxLength = 0;
+    for (String name : tagTypes.keySet())
+      maxLength = Math.max(maxLength, name.length());
+    tagTypesByLength = new TagType[maxLength + 1][];
+    for (int length = 0; length <= maxLength; ++length) {
+      ArrayList<TagType> types = new ArrayList<TagType>();
+      for (TagType type : tagTypes.values()) {
+        if (type.name.length() == length)
+          types.add(type);
+      }
+      tagTypesByLength[length] = types.toArray(new TagType[types.size()]);
+    }
+  }
+
+  // Looks up the tag named by html[start, end), ignoring case. Returns
+  // null for a tag we don't know.
+  private static TagType lookupTagType(String html, int start, int end) {
+    int length = end - start;
+    if (length >= tagTypesByLength.length)
+      return null;
+    for (TagType type : tagTypesByLength[length]) {
+      int i = 0;
+      while (i < length && Character.toUpperCase(html.charAt(start + i))
+             == type.name.charAt(i))
+        ++i;
+      if (i == length)
+        return type;
+    }
+    return null;
+  }
+
+  private static boolean contains(TagType[] types, TagType type) {
+    for (TagType t : types) {
+      if (t == type)
+        return true;
+    }
+    return false;
   }
 
   // An utterance: a series of SpeechElements.
   public static class Utterance extends ArrayList<SpeechElement> {
     int numChars;  // count of text chars, excluding indications.
     StringBuilder builder = new StringBuilder();
-    void addText(String txt) {
-      builder.append(txt +" ");
-      numChars += txt.length();
+    // Adds txt[start, end), followed by a space.
+    void addText(CharSequence txt, int start, int end) {
+      builder.append(txt, start, end).append(' ');
+      numChars += end - start;
     }
     // Flushes text accumulated in the builder into a new SpokenText
     // element.
@@ -228,13 +315,22 @@ public class HtmlTalker {
   // Number of spans in each utterance. Parallel array with |utterances|.
   ArrayList<Integer> numberOfSpansPerUtterance = new ArrayList<Integer>();
 
-  // Appends a piece of HTML to the HTML output, to be wrapped in a
+  // Starts a <span> tag in the HTML output, for a piece of the
+  // current utterance. The markup is appended piecewise: going through
+  // String.format for each of possibly thousands of spans was slow.
+  private void beginFullHtmlSpan() {
+    fullHtml.append("<span id=\"utt").append(utterances.size())
+        .append('_').append(numberOfSpans++).append("\">");
+  }
+  private void endFullHtmlSpan() {
+    fullHtml.append("</span>");
+  }
+  // Appends text[start, end), escaped, to the HTML output, wrapped in a
   // <span> tag corresponding to the current utterance.
-  private void addFullHtmlSpan(String html) {
-    fullHtml.append(
-        String.format(
-            "<span id=\"utt%d_%d\">%s</span>",
-            utterances.size(), numberOfSpans++, html));
+  private void addFullHtmlTextSpan(int start, int end) {
+    beginFullHtmlSpan();
+    appendEncoded(fullHtml, text, start, end);
+    endFullHtmlSpan();
   }
   // Appends a piece of HTML to the HTML output, not wrapped into a
   // span. This is for HTML markup that is not spoken.
@@ -248,12 +344,10 @@ public class HtmlTalker {
     numberOfSpans = 0;
   }
 
-  private Node root;  // sentinel single top of document tree node.
-
   // Finishes the current utterance, called when we encounter a tag
   // that breaks the flow of text. A silence indication is added to
   // the finished utterance to denote the break in text flow.
-  private void doBreakFlow(TagNode tag) {
+  private void doBreakFlow() {
     if (currentUtterance.numChars == 0) {
       if (currentUtterance.isEmpty() && utterances.size() > 0)
         currentUtterance.addIndication(EarconIndication.breakFlow);
@@ -268,157 +362,892 @@ public class HtmlTalker {
   private HtmlTalker() {
   }
 
-  // Regexp to find the end of a sentence.
-  private static final Pattern sentenceBreak = Pattern.compile(
-      "(?<![.].)[.!?][.!?)\"]*\\s");
-  private Matcher sentenceMatcher = sentenceBreak.matcher("");
-
-  public void doParse(String htmlString)
-      throws HtmlParseException {
-    Parser p = new Parser();
-    PrototypicalNodeFactory factory = new PrototypicalNodeFactory ();
-    factory.registerTag(new BlockQuoteTag());
-    p.setNodeFactory (factory);
-    NodeList list;
-    try {
-      p.setInputHTML(htmlString);
-      list = p.parse (null);
-    } catch(ParserException e) {
-      throw new HtmlParseException(e);
-    }
-    if (list == null)
-      return;
-    // The parser gives us a NodeList. We insert a single root node on top of it.
-    root = new Html();
-    root.setChildren(list);
-    for (int i = 0; i < list.size(); ++i) {
-      Node l = list.elementAt(i);
-      l.setParent(root);
-    }
-
-    Node n = root.getFirstChild();
-    // Traverse the tree.
-    while (n != null) {
-      boolean doRecurse = true;
-      if (n instanceof TextNode) {
-        String txt = n.getText().trim();
-        if (txt.length() > 0) {
-          txt = Translate.decode(txt) +" ";
-          sentenceMatcher.reset(txt);
-          int start = 0;
-          // Start new utterances on sentence boundaries.
-          while(sentenceMatcher.find()) {
-            int end = sentenceMatcher.end();
-            int length = end - start;
-            // Keep the same utterance if it has less than 30chars.
-            if (currentUtterance.numChars + length > 30) {
-              String sentence = txt.substring(start, end);
-              if (start == 0 && currentUtterance.builder.length() > 0) {
-                // Zap the trailing space at the end of the utterance builder.
-                // As when <a href="...">This</a>.
-                currentUtterance.builder.deleteCharAt(
-                    currentUtterance.builder.length() - 1);
-              }
-              currentUtterance.addText(sentence);
-              addFullHtmlSpan(Translate.encode(sentence));
-              finishUtterance();
-              finishFullHtmlUtterance();
-              start = end;
-            }
-          }
-          if (start < txt.length()) {
-            String remaining = txt.substring(start);
-            currentUtterance.addText(remaining);
-            addFullHtmlSpan(Translate.encode(remaining));
+  /* Text is decoded into |text|, reused from one text node to the
+     next, and split into sentences by scanning it in place: sentences
+     and spans are appended from ranges of it, without making a String
+     of each. */
+  private StringBuilder text = new StringBuilder();
+
+  private static boolean isSentenceTerminator(char c) {
+    return c == '.' || c == '!' || c == '?';
+  }
+
+  // The chars of java.util.regex's \s.
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f'
+        || c == '\r';
+  }
+
+  // The chars that the regexp '.' doesn't match.
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+        || c == '\u2029';
+  }
+
+  // Finds the end of a sentence in txt[from, txt.length()), and
+  // returns the index just past it, or -1. A sentence ends with one of
+  // .!? followed by any of .!?)" and then a space, which is included.
+  // The terminator must not be preceded by a '.' and one other char
+  // (not a line terminator), as in "e.g.", which may be looked for
+  // before |from|. This is the
+  // regexp "(?<![.].)[.!?][.!?)\"]*\\s".
+  static int findSentenceEnd(CharSequence txt, int from) {
+    int length = txt.length();
+    for (int p = from; p < length; ++p) {
+      if (!isSentenceTerminator(txt.charAt(p))
+          || (p >= 2 && txt.charAt(p - 2) == '.'
+              && !isLineTerminator(txt.charAt(p - 1))))
+        continue;
+      int r = p + 1;
+      while (r < length) {
+        char c = txt.charAt(r);
+        if (!isSentenceTerminator(c) && c != ')' && c != '"')
+          break;
+        ++r;
+      }
+      if (r < length && isSpace(txt.charAt(r)))
+        return r + 1;
+      // Terminators up to |r| are followed by the same run: no need to
+      // try them again.
+      p = r;
+    }
+    return -1;
+  }
+
+  // Decodes character references in html[from, to), once trimmed, into
+  // |text|, as Translate.decode() does. Returns the decoded length.
+  private int decodeText(int from, int to) {
+    while (from < to && html.charAt(from) <= ' ')
+      ++from;
+    while (to > from && html.charAt(to - 1) <= ' ')
+      --to;
+    text.setLength(0);
+    int i = from;
+    while (i < to) {
+      char c = html.charAt(i++);
+      if (c != '&' || i == to) {
+        text.append(c);
+        continue;
+      }
+      c = html.charAt(i);
+      if (c == '#') {
+        // Numeric reference, decimal or hexadecimal.
+        int j = i + 1;
+        int number = 0;
+        int radix = 0;
+        for (; j < to; ++j) {
+          c = html.charAt(j);
+          int digit;
+          if (c >= '0' && c <= '9') {
+            if (radix == 0)
+              radix = 10;
+            digit = c - '0';
+          } else if (radix == 16 && c >= 'A' && c <= 'F') {
+            digit = c - 'A' + 10;
+          } else if (radix == 16 && c >= 'a' && c <= 'f') {
+            digit = c - 'a' + 10;
+          } else if (radix == 0 && (c == 'x' || c == 'X')) {
+            radix = 16;
+            continue;
+          } else {
+            if (c == ';')
+              ++j;
+            break;
           }
+          number = number * radix + digit;
         }
-      } else if (n instanceof RemarkNode) {
-        // skip it.
-      } else if (n instanceof TagNode) {
-        TagNode tag = (TagNode)n;
-        if (tag.breaksFlow()) {
-          doBreakFlow(tag);
+        if (number != 0) {
+          text.append((char)number);
+          i = j;
+          continue;
         }
-        if (tag.getTagName().equals("SCRIPT")
-                   || tag.getTagName().equals("IFRAME")) {
-          // skip that.
-          doRecurse = false;
-        } else {
-          boolean addHtmlAsSpan = false;
-          // Lookup indication by tag.
-          IndicationsInfo info = indications.get(tag.getTagName());
-          if (info != null && info.begin != null) {
-            currentUtterance.addIndication(info.begin);
-          } else if (tag.getTagName().equals("A")
-                     && tag.getAttribute("href") != null) {
-            currentUtterance.addIndication(EarconIndication.link);
-          } else if (tag.getTagName().equals("IMG")) {
-            String alt = tag.getAttribute("alt");
-            if (alt != null
-                && (alt = alt.trim()).length() > 0) {
-              currentUtterance.addIndication(SpokenIndication.image);
-              currentUtterance.addText(Translate.decode(alt));
-              addHtmlAsSpan = true;
-            } else if (tag.getParent() != null
-                       && ((TagNode)tag.getParent())
-                              .getTagName().equals("A")) {
-              currentUtterance.addIndication(SpokenIndication.imageLink);
-              addHtmlAsSpan = true;
-            }
-          }
-          if (addHtmlAsSpan)
-            addFullHtmlSpan("<" + tag.getText() + ">");
-          else
-            addFullHtmlRaw("<" + tag.getText() + ">");
+      } else if (Character.isLetter(c)) {
+        // Named reference.
+        int j = i + 1;
+        while (j < to && Character.isLetterOrDigit(html.charAt(j)))
+          ++j;
+        CharacterReference ref = Translate.lookup(html, i, j);
+        if (ref != null) {
+          text.append((char)ref.getCharacter());
+          i += ref.getKernel().length();
+          if (i < to && html.charAt(i) == ';')
+            ++i;
+          continue;
         }
       }
-      Node next = null;
-      if (doRecurse) {
-        next = n.getFirstChild();
-        if (next != null) {
-          n = next;
-          continue;
+      text.append('&');
+    }
+    return text.length();
+  }
+
+  // Appends txt[start, end) to |out|, with characters escaped as
+  // Translate.encode() does.
+  private static void appendEncoded(StringBuilder out, CharSequence txt,
+                                    int start, int end) {
+    for (int i = start; i < end; ++i) {
+      char c = txt.charAt(i);
+      CharacterReference ref = Translate.lookup(c);
+      if (ref != null)
+        out.append('&').append(ref.getKernel()).append(';');
+      else if (c >= 127)
+        out.append("&#").append((int)c).append(';');
+      else
+        out.append(c);
+    }
+  }
+
+  /* The HTML is read in a single pass: a tokenizer splits it into
+     text, comments and tags, as the htmlparser lexer used to, and we
+     keep a stack of the elements that are open. Text and tags are
+     handled as they come, end indications when an element ends. */
+
+  private String html;
+  private int pos;  // Where the tokenizer is in |html|.
+
+  // The current token, html[tokenStart, tokenEnd).
+  private static final int TEXT_TOKEN = 0;
+  private static final int REMARK_TOKEN = 1;
+  private static final int TAG_TOKEN = 2;
+  private int tokenKind;
+  private int tokenStart, tokenEnd;
+  // For a tag: its text, between the < and the >, ends at
+  // |tagTextEnd|. A quote left open at the end of the input gets
+  // closed, as |unclosedQuote|.
+  private int tagTextEnd;
+  private char unclosedQuote;
+  private TagType tagType;  // null if we don't know the tag.
+  private boolean endTag;  // As </p>.
+  private boolean emptyTag;  // As <br/>.
+  private int nameStart, nameEnd;  // Tag name as written, with slashes.
+  // Value of the href attribute of <a>, or of the alt attribute of
+  // <img>. |valueStart| is -1 if missing or without a value.
+  private int valueStart, valueEnd;
+
+  // The elements that are open, innermost last.
+  private int depth;
+  private TagType[] openTypes = new TagType[16];
+  private int[] openNameStarts = new int[16];
+  private int[] openNameEnds = new int[16];
+  private boolean[] openHasContent = new boolean[16];
+  // Where their start tag is in |fullHtml|.
+  private int[] openHtmlStarts = new int[16];
+  private int[] openHtmlEnds = new int[16];
+
+  private int charAt(int i) {
+    return i < html.length() ? html.charAt(i) : -1;
+  }
+
+  private static boolean isTagStart(int c) {
+    return c == '/' || c == '!' || c == '%' || c == '?'
+        || (c >= 0 && Character.isLetter((char)c));
+  }
+
+  // Reads the next token from |pos|. Returns false at the end of the
+  // input.
+  private boolean nextToken() {
+    int start = pos;
+    int c = charAt(start);
+    if (c < 0)
+      return false;
+    tokenStart = start;
+    if (c != '<') {
+      setToken(TEXT_TOKEN, scanText(start, false));
+      return true;
+    }
+    c = charAt(start + 1);
+    if (c < 0) {
+      setToken(TEXT_TOKEN, start + 1);
+    } else if (c == '%') {
+      scanJsp(start);
+    } else if (c == '?') {
+      scanProcessingInstruction(start);
+    } else if (c == '/' || Character.isLetter((char)c)) {
+      scanTag(start);
+    } else if (c == '!') {
+      c = charAt(start + 2);
+      if (c < 0)
+        setToken(TEXT_TOKEN, start + 2);
+      else if (c == '>')
+        setToken(REMARK_TOKEN, start + 3);
+      else if (c == '-')
+        scanRemark(start);
+      else
+        scanTag(start);
+    } else {
+      setToken(TEXT_TOKEN, scanText(start + 2, false));
+    }
+    return true;
+  }
+
+  private void setToken(int kind, int end) {
+    tokenKind = kind;
+    tokenEnd = end;
+    pos = end;
+  }
+
+  // Scans text from |i|, up to the start of something that looks like
+  // a tag. With |quoteSmart|, quoted strings and script comments are
+  // skipped over. Returns the end of the text.
+  private int scanText(int i, boolean quoteSmart) {
+    int quote = 0;
+    while (true) {
+      int c = charAt(i);
+      if (c < 0)
+        return i;
+      ++i;
+      if (quoteSmart && quote == 0 && (c == '\'' || c == '"')) {
+        quote = c;
+      } else if (quoteSmart && quote != 0 && c == '\\') {
+        c = charAt(i);
+        if (c == '\\' || (c == quote && c >= 0))
+          ++i;
+      } else if (quoteSmart && c == quote) {
+        quote = 0;
+      } else if (quoteSmart && quote == 0 && c == '/') {
+        i = skipScriptComment(i);
+      } else if (quote == 0 && c == '<') {
+        if (isTagStart(charAt(i)))
+          return i - 1;
+      }
+    }
+  }
+
+  // After a '/' at |i| - 1, skips a // or /* comment if there is one.
+  private int skipScriptComment(int i) {
+    int c = charAt(i);
+    if (c == '/') {
+      do {
+        c = charAt(++i);
+      } while (c >= 0 && c != '\n' && c != '\r');
+      return c >= 0 ? i + 1 : i;
+    }
+    if (c == '*') {
+      ++i;
+      do {
+        do {
+          c = charAt(i);
+          if (c >= 0)
+            ++i;
+        } while (c >= 0 && c != '*');
+        c = charAt(i);
+        if (c >= 0 && c != '*')
+          ++i;
+      } while (c >= 0 && c != '/');
+    }
+    return i;
+  }
+
+  // Scans a <!-- comment --> at |start|. Something that doesn't
+  // quite begin like one is text.
+  private void scanRemark(int start) {
+    int i = start + 3;
+    int c = charAt(i);
+    if (c >= 0 && c != '-') {
+      setToken(TEXT_TOKEN, scanText(i + 1, false));
+      return;
+    }
+    if (c >= 0) {
+      c = charAt(++i);
+      if (c >= 0)
+        ++i;
+    }
+    if (c < 0 || c == '>') {
+      setToken(REMARK_TOKEN, i);
+      return;
+    }
+    // The comment ends at -- followed by spaces and >.
+    --i;
+    int state = 0;
+    while ((c = charAt(i)) >= 0) {
+      ++i;
+      if (state == 0) {
+        if (c == '-')
+          state = 1;
+      } else if (state == 1) {
+        state = c == '-' ? 2 : 0;
+      } else if (c == '>') {
+        break;
+      } else if (!Character.isWhitespace((char)c)) {
+        state = 0;
+      }
+    }
+    setToken(REMARK_TOKEN, i);
+  }
+
+  // Scans a <?...?> processing instruction at |start|. If it isn't
+  // properly ended, it is text.
+  private void scanProcessingInstruction(int start) {
+    int i = start + 2;
+    int state = 0;
+    int c;
+    while ((c = charAt(i)) >= 0) {
+      ++i;
+      if (state == '\'' || state == '"') {
+        if (c == state)
+          state = 0;
+      } else if (state == '?') {
+        if (c == '>') {
+          setLeafTag(start, i);
+          return;
         }
+        state = 0;
+      } else if (c == '\'' || c == '"' || c == '?') {
+        state = c;
+      } else if (c == '>') {
+        break;
       }
-      next = n.getNextSibling();
-      while (next == null) {
-        Node parent = n.getParent();
-        if (parent == root) {
-          // We are done, just need to wrap up the current utterance.
-          if (!currentUtterance.isEmpty()) {
-            finishUtterance();
-            finishFullHtmlUtterance();
+    }
+    setToken(TEXT_TOKEN, scanText(i, true));
+  }
+
+  // Same for <%...%>.
+  private void scanJsp(int start) {
+    int i = start + 2;
+    int c = charAt(i);
+    if (c >= 0 && c != '>') {
+      ++i;
+      int state = 0;
+      while ((c = charAt(i)) >= 0) {
+        ++i;
+        if (state == '\'' || state == '"') {
+          if (c == state)
+            state = 0;
+        } else if (state == '%') {
+          if (c == '>') {
+            setLeafTag(start, i);
+            return;
           }
-          return;
+          state = 0;
+        } else if (c == '\'' || c == '"' || c == '%') {
+          state = c;
+        } else if (c == '/') {
+          i = skipScriptComment(i);
+        } else if (c == '>') {
+          break;
         }
-        n = parent;
-        if (n instanceof CompositeTag) {
-          CompositeTag tag = (CompositeTag)n;
-          // Lookup closing indication by tag.
-          IndicationsInfo info = indications.get(tag.getTagName());
-          if (info != null) {
-            if (info.end != null)
-              currentUtterance.addIndication(info.end);
+      }
+    } else if (c >= 0) {
+      ++i;
+    }
+    setToken(TEXT_TOKEN, scanText(i, true));
+  }
+
+  private void setLeafTag(int start, int end) {
+    tagType = null;
+    endTag = emptyTag = false;
+    unclosedQuote = 0;
+    valueStart = -1;
+    nameStart = nameEnd = start + 1;
+    tagTextEnd = end - 1;
+    setToken(TAG_TOKEN, end);
+  }
+
+  // Scans a tag at |start|, up to a > outside of quotes, and its name
+  // and attributes on the way.
+  private void scanTag(int start) {
+    tagType = null;
+    endTag = false;
+    unclosedQuote = 0;
+    valueStart = -1;
+    String wanted = null;  // Name of the attribute we want the value of.
+    boolean haveWanted = false;
+    boolean haveName = false;
+    // Whether the last attribute has a name that ends in a slash, for
+    // <br/>, as opposed to being spaces.
+    boolean slashLast = false;
+    int i = start + 1;
+    int spaceStart = i;
+    int attrStart = i, attrEnd = i, attrValueStart = -1;
+    int textEnd = -1;
+    int state = 0;
+    while (true) {
+      int c = charAt(i);
+      boolean attribute = false;
+      int attrValueEnd = -1;
+      boolean done = false;
+      boolean again = false;  // Whether to look at |c| again.
+      switch (state) {
+        case 0:  // Spaces.
+          if (c >= 0 && c != '>' && c != '<'
+              && Character.isWhitespace((char)c))
+            break;
+          if (spaceStart < i)
+            slashLast = false;
+          if (c < 0 || c == '>' || c == '<') {
+            done = true;
+          } else {
+            attrStart = i;
+            state = 1;
+          }
+          break;
+        case 1:  // Name.
+          if (c < 0 || c == '>' || c == '<') {
+            attrEnd = i;
+            attrValueStart = -1;
+            attribute = done = true;
+          } else if (Character.isWhitespace((char)c)) {
+            attrEnd = i;
+            state = 4;
+          } else if (c == '=') {
+            attrEnd = i;
+            state = 2;
           }
-          Node closeTag = tag.getEndTag();
-          if (closeTag != null)
-            addFullHtmlRaw("<" + closeTag.getText() + ">");
-          if (tag.breaksFlow())
-            doBreakFlow(tag);
+          break;
+        case 4:  // Spaces after a name.
+          if (c == '=') {
+            state = 2;
+          } else if (c < 0 || !Character.isWhitespace((char)c)) {
+            // A name on its own, the spaces come after it.
+            attrValueStart = -1;
+            attribute = again = true;
+            spaceStart = attrEnd;
+            state = 0;
+          }
+          break;
+        case 2:  // After =.
+          if (c < 0 || c == '>') {
+            // No value after all. What follows the name beyond its
+            // first char is dropped from the tag's text.
+            attrValueStart = -1;
+            attrValueEnd = i;
+            textEnd = attrEnd + 1;
+            attribute = done = true;
+          } else if (c == '\'' || c == '"') {
+            attrValueStart = i + 1;
+            state = c;
+          } else if (!Character.isWhitespace((char)c)) {
+            attrValueStart = i;
+            state = 3;
+          }
+          break;
+        case 3:  // Unquoted value.
+          if (c < 0 || c == '>' || Character.isWhitespace((char)c)) {
+            attrValueEnd = i;
+            attribute = true;
+            done = c < 0 || c == '>';
+            spaceStart = i;
+            state = 0;
+          }
+          break;
+        default:  // Quoted value.
+          if (c < 0 || c == state) {
+            if (c < 0)
+              unclosedQuote = (char)state;
+            attrValueEnd = i;
+            attribute = true;
+            done = c < 0;
+            spaceStart = i + 1;
+            state = 0;
+          }
+          break;
+      }
+      if (attribute) {
+        if (!haveName) {
+          haveName = true;
+          nameStart = attrStart;
+          nameEnd = attrEnd;
+          int s = attrStart, e = attrEnd;
+          if (s < e && html.charAt(s) == '/') {
+            endTag = true;
+            ++s;
+          }
+          if (s < e && html.charAt(e - 1) == '/')
+            --e;
+          tagType = lookupTagType(html, s, e);
+          if (tagType == A)
+            wanted = "href";
+          else if (tagType == IMG)
+            wanted = "alt";
+        } else if (wanted != null && !haveWanted
+                   && attrEnd - attrStart == wanted.length()
+                   && html.regionMatches(true, attrStart, wanted, 0,
+                                         wanted.length())) {
+          haveWanted = true;
+          valueStart = attrValueStart;
+          valueEnd = attrValueEnd;
         }
-        next = n.getNextSibling();
+        slashLast = html.charAt(attrEnd - 1) == '/';
+      }
+      if (again)
+        continue;
+      if (done) {
+        tagTextEnd = textEnd >= 0 ? textEnd : i;
+        emptyTag = slashLast;
+        setToken(TAG_TOKEN, c == '>' ? i + 1 : i);
+        return;
+      }
+      ++i;
+    }
+  }
+
+  // Scans the raw content of a <script> or <style> from |i|, up to
+  // the next end tag that isn't in a <!-- comment -->. Returns the end
+  // of the content.
+  private int scanRawText(int i) {
+    int state = 0;
+    while (true) {
+      int c = charAt(i);
+      if (c < 0)
+        return i;
+      ++i;
+      switch (state) {
+        case 0:
+          if (c == '<')
+            state = 1;
+          break;
+        case 1:  // After <.
+          state = 0;
+          if (c == '/') {
+            state = 2;
+          } else if (c == '!') {
+            if ((c = charAt(i++)) < 0)
+              return i - 1;
+            if (c == '-') {
+              if ((c = charAt(i++)) < 0)
+                return i - 1;
+              if (c == '-')
+                state = 3;
+            }
+          }
+          break;
+        case 2:  // After </.
+          if (Character.isLetter((char)c))
+            return i - 3;
+          state = 0;
+          break;
+        case 3:  // In a comment.
+          if (c == '-') {
+            if ((c = charAt(i++)) < 0)
+              return i - 1;
+            if (c != '-') {
+              --i;
+            } else {
+              if ((c = charAt(i++)) < 0)
+                return i - 1;
+              if (c == '>')
+                state = 0;
+              else
+                i -= 2;
+            }
+          }
+          break;
+      }
+    }
+  }
+
+  // Appends the text of the current tag to the HTML output, as
+  // wrapped in a span or not.
+  private void addTagHtml(boolean asSpan) {
+    if (asSpan)
+      beginFullHtmlSpan();
+    fullHtml.append('<').append(html, tokenStart + 1, tagTextEnd);
+    if (unclosedQuote != 0)
+      fullHtml.append(unclosedQuote);
+    fullHtml.append('>');
+    if (asSpan)
+      endFullHtmlSpan();
+  }
+
+  // Handles the current tag as it comes: breaks the flow of text,
+  // adds indications and the tag itself to the HTML output.
+  private void doTag() {
+    if (tagType != null && tagType.breaksFlow)
+      doBreakFlow();
+    if (tagType == SCRIPT || tagType == IFRAME)
+      return;  // skip that.
+    boolean addHtmlAsSpan = false;
+    // Lookup indication by tag.
+    IndicationsInfo info = tagType != null ? tagType.indications : null;
+    if (info != null && info.begin != null) {
+      currentUtterance.addIndication(info.begin);
+    } else if (tagType == A && valueStart >= 0) {
+      currentUtterance.addIndication(EarconIndication.link);
+    } else if (tagType == IMG) {
+      int altLength = valueStart >= 0 ? decodeText(valueStart, valueEnd) : 0;
+      if (altLength > 0) {
+        currentUtterance.addIndication(SpokenIndication.image);
+        currentUtterance.addText(text, 0, altLength);
+        addHtmlAsSpan = true;
+      } else if (depth > 0 && openTypes[depth - 1] == A) {
+        currentUtterance.addIndication(SpokenIndication.imageLink);
+        addHtmlAsSpan = true;
       }
-      n = next;
     }
+    addTagHtml(addHtmlAsSpan);
+  }
+
+  private static int[] grow(int[] a, int n) {
+    int[] grown = new int[n];
+    System.arraycopy(a, 0, grown, 0, a.length);
+    return grown;
+  }
+
+  // Starts an element for the current tag, whose HTML output starts at
+  // |tagHtmlStart| in |fullHtml|.
+  private void openElement(int tagHtmlStart) {
+    if (depth == openTypes.length) {
+      int n = 2 * depth;
+      TagType[] types = new TagType[n];
+      boolean[] hasContent = new boolean[n];
+      System.arraycopy(openTypes, 0, types, 0, depth);
+      System.arraycopy(openHasContent, 0, hasContent, 0, depth);
+      openTypes = types;
+      openHasContent = hasContent;
+      openNameStarts = grow(openNameStarts, n);
+      openNameEnds = grow(openNameEnds, n);
+      openHtmlStarts = grow(openHtmlStarts, n);
+      openHtmlEnds = grow(openHtmlEnds, n);
+    }
+    openTypes[depth] = tagType;
+    openNameStarts[depth] = nameStart;
+    openNameEnds[depth] = nameEnd;
+    openHasContent[depth] = false;
+    openHtmlStarts[depth] = tagHtmlStart;
+    openHtmlEnds[depth] = fullHtml.length();
+    ++depth;
+  }
+
+  // Notes that the innermost open element has content.
+  private void addContent() {
+    if (depth > 0)
+      openHasContent[depth - 1] = true;
+  }
+
+  // Ends the innermost open element, with the current tag as its end
+  // tag if |haveEndTag|, else with a made up one. An element without
+  // content gets no end indications, nor an end tag in the output.
+  private void closeElement(boolean haveEndTag) {
+    --depth;
+    if (!openHasContent[depth])
+      return;
+    TagType type = openTypes[depth];
+    // Lookup closing indication by tag.
+    IndicationsInfo info = type.indications;
+    if (info != null && info.end != null)
+      currentUtterance.addIndication(info.end);
+    if (haveEndTag) {
+      addTagHtml(false);
+    } else {
+      fullHtml.append("</").append(
+          html, openNameStarts[depth], openNameEnds[depth]).append('>');
+    }
+    if (type.breaksFlow)
+      doBreakFlow();
+  }
+
+  // Whether the current tag implicitly ends the innermost open
+  // element.
+  private boolean endsElement() {
+    TagType type = openTypes[depth - 1];
+    return contains(endTag ? type.endTagEnders : type.enders, tagType);
+  }
+
+  // For an end tag that doesn't match the innermost open element: the
+  // index of the open element it ends, or -1.
+  private int findEndedElement() {
+    for (int i = depth - 2; i >= 0; --i) {
+      if (openTypes[i] == tagType || contains(openTypes[i].endTagEnders,
+                                              tagType))
+        return i;
+    }
+    return -1;
+  }
+
+  // A <script> or <style>: its content is raw text, up to its end tag.
+  // A script is skipped entirely, while the text of a style is spoken
+  // like any other.
+  private void doRawTextElement() {
+    TagType type = tagType;
+    doTag();
+    int contentStart = pos;
+    int contentEnd = scanRawText(pos);
+    pos = contentEnd;
+    boolean haveEndTag = nextToken() && tokenKind == TAG_TOKEN && endTag
+        && tagType == type;
+    if (!haveEndTag)
+      pos = contentEnd;
+    if (type == STYLE && contentEnd > contentStart) {
+      doText(contentStart, contentEnd);
+      if (haveEndTag)
+        addTagHtml(false);
+      else
+        fullHtml.append("</style>");
+    }
+  }
+
+  // Speaks text html[from, to).
+  private void doText(int from, int to) {
+    if (decodeText(from, to) == 0)
+      return;
+    text.append(' ');
+    int start = 0;
+    int end = 0;
+    // Start new utterances on sentence boundaries.
+    while ((end = findSentenceEnd(text, end)) >= 0) {
+      int length = end - start;
+      // Keep the same utterance if it has less than 30chars.
+      if (currentUtterance.numChars + length > 30) {
+        if (start == 0 && currentUtterance.builder.length() > 0) {
+          // Zap the trailing space at the end of the utterance builder.
+          // As when <a href="...">This</a>.
+          currentUtterance.builder.deleteCharAt(
+              currentUtterance.builder.length() - 1);
+        }
+        currentUtterance.addText(text, start, end);
+        addFullHtmlTextSpan(start, end);
+        finishUtterance();
+        finishFullHtmlUtterance();
+        start = end;
+      }
+    }
+    if (start < text.length()) {
+      currentUtterance.addText(text, start, text.length());
+      addFullHtmlTextSpan(start, text.length());
+    }
+  }
+
+  /* The parse can be done a part at a time, so that a long article
+     can start being spoken while the rest is parsed: parseMore() goes
+     on until a number of utterances are done, and hands out what was
+     produced since the previous part as a Chunk. */
+
+  // Whether to handle the current token again.
+  private boolean reprocessToken;
+  private boolean parseDone;
+
+  // Parses until |utterances| has |numUtterances|, or to the end of
+  // the input. Returns whether the end was reached.
+  private boolean parseUntil(int numUtterances) {
+    while (reprocessToken || nextToken()) {
+      reprocessToken = false;
+      if (tokenKind == TEXT_TOKEN) {
+        addContent();
+        doText(tokenStart, tokenEnd);
+      } else if (tokenKind == REMARK_TOKEN) {
+        // skip it.
+        addContent();
+      } else if (depth > 0 && endTag && tagType == openTypes[depth - 1]) {
+        closeElement(true);
+      } else if (depth > 0 && endsElement()) {
+        closeElement(false);
+        reprocessToken = true;
+      } else if (!endTag && tagType != null && tagType.container) {
+        addContent();
+        int tagHtmlStart = fullHtml.length();
+        doTag();
+        if (!emptyTag)
+          openElement(tagHtmlStart);
+      } else if (!endTag && (tagType == SCRIPT || tagType == STYLE)) {
+        addContent();
+        doRawTextElement();
+      } else {
+        int ended = -1;
+        if (endTag && tagType != null && tagType.container)
+          ended = findEndedElement();
+        if (ended >= 0) {
+          // The end tag itself is dropped.
+          while (depth > ended)
+            closeElement(false);
+        } else {
+          addContent();
+          doTag();
+        }
+      }
+      if (utterances.size() >= numUtterances)
+        return false;
+    }
+    while (depth > 0)
+      closeElement(false);
+    // Wrap up the current utterance.
+    if (!currentUtterance.isEmpty()) {
+      finishUtterance();
+      finishFullHtmlUtterance();
+    }
+    html = null;
+    parseDone = true;
+    return true;
+  }
+
+  public void doParse(String htmlString) {
+    html = htmlString;
+    pos = 0;
+    depth = 0;
+    parseUntil(Integer.MAX_VALUE);
   }
 
   // Parses a string of HTML. The output is just left in |utterances|,
   // |fullHtml| and numberOfSpansPerUtterance|.
 
-  public static HtmlTalker parse(String htmlString)
-    throws HtmlParseException {
+  public static HtmlTalker parse(String htmlString) {
     HtmlTalker htmlTalker = new HtmlTalker();
     htmlTalker.doParse(htmlString);
     return htmlTalker;
   }
+
+  // A part of the output of a parse: utterances from |firstUtterance|
+  // on, with their span counts, and the HTML produced along with them.
+  // The HTML can be shown as it is, elements left open being closed at
+  // its end, and opened again at the start of the next chunk.
+  public static class Chunk {
+    public int firstUtterance;
+    public ArrayList<Utterance> utterances;
+    public ArrayList<Integer> numberOfSpansPerUtterance;
+    public String html;
+    public boolean isLast;
+  }
+
+  // What was handed out in chunks so far.
+  private int chunkUtterances;
+  private int chunkHtmlLength;
+  // Start tags of the elements left open by the previous chunk.
+  private String reopenHtml = "";
+
+  // Starts a parse of |htmlString| to be done with parseMore().
+  public static HtmlTalker startParse(String htmlString) {
+    HtmlTalker htmlTalker = new HtmlTalker();
+    htmlTalker.html = htmlString;
+    return htmlTalker;
+  }
+
+  // Parses at least another |numUtterances|, or to the end, and returns
+  // what's new.
+  public Chunk parseMore(int numUtterances) {
+    if (!parseDone)
+      parseUntil(chunkUtterances + numUtterances);
+    Chunk chunk = new Chunk();
+    chunk.firstUtterance = chunkUtterances;
+    int end = utterances.size();
+    chunk.utterances = new ArrayList<Utterance>(
+        utterances.subList(chunkUtterances, end));
+    chunk.numberOfSpansPerUtterance = new ArrayList<Integer>(
+        numberOfSpansPerUtterance.subList(chunkUtterances, end));
+    chunk.isLast = parseDone;
+    StringBuilder builder = new StringBuilder(
+        reopenHtml.length() + fullHtml.length() - chunkHtmlLength
+        + 16 * depth);
+    builder.append(reopenHtml).append(fullHtml, chunkHtmlLength,
+                                      fullHtml.length());
+    for (int i = depth - 1; i >= 0; --i) {
+      builder.append("</").append(
+          html, openNameStarts[i], openNameEnds[i]).append('>');
+    }
+    chunk.html = builder.toString();
+    builder.setLength(0);
+    for (int i = 0; i < depth; ++i)
+      builder.append(fullHtml, openHtmlStarts[i], openHtmlEnds[i]);
+    reopenHtml = builder.toString();
+    chunkUtterances = end;
+    chunkHtmlLength = fullHtml.length();
+    return chunk;
+  }
+
+  // The output of a complete parse, as a single chunk.
+  public Chunk allInOneChunk() {
+    Chunk chunk = new Chunk();
+    chunk.utterances = utterances;
+    chunk.numberOfSpansPerUtterance = numberOfSpansPerUtterance;
+    chunk.html = fullHtml.toString();
+    chunk.isLast = true;
+    return chunk;
+  }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Talking RSS Reader.
+ *
+ * @author sdoyon@google.com (Stephane Doyon)
+ */
+
+package com.googlecode.talkingrssreader.talkingrss;
+
+import android.util.Config;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpeechElement;
+import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpokenText;
+import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.Utterance;
+
+/** HtmlTalkerCache: keeps recently parsed HtmlTalker results in
+ * memory, so that showing an article or help page again, or an article
+ * that was parsed ahead of time, doesn't need another parse.
+ */
+
+/* Entries are keyed by a caller chosen name (the article tag, or the
+   resource id for help pages), but the HTML input can change under the
+   same name (the article header shows a relative date), so an entry
+   only matches the exact input it was parsed from. HtmlTalker results
+   are not modified once parsed, and are shared between users.
+
+   The cache is bounded by an estimate of the memory held by the
+   parses, least recently used first out. */
+
+public class HtmlTalkerCache {
+  private static final String TAG = "talkingrss-htmlcache";
+
+  private static final long MAX_BYTES = 1024*1024;
+
+  private static class Entry {
+    String input;  // the HTML this was parsed from
+    int size;  // estimated, in bytes
+    HtmlTalker htmlTalker;
+  }
+
+  private LinkedHashMap<String, Entry> entries
+      = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  // Same entries, for lookups that shouldn't count as a use.
+  private HashMap<String, Entry> byName = new HashMap<String, Entry>();
+  private long totalSize;
+  private int hits, misses;
+
+  private static boolean matches(Entry entry, String htmlInput) {
+    return entry.input.equals(htmlInput);
+  }
+
+  // Rough estimate of the memory used by a parse and its input: two
+  // bytes per char of text, plus some overhead per object.
+  private static int estimateSize(String htmlInput, HtmlTalker htmlTalker) {
+    int size = 2 * htmlInput.length();
+    size += 2 * htmlTalker.fullHtml.length();
+    for (Utterance utterance : htmlTalker.utterances) {
+      size += 48;
+      for (SpeechElement element : utterance) {
+        size += 16;
+        if (element instanceof SpokenText)
+          size += 40 + 2 * element.spokenTextLength();
+      }
+    }
+    size += 16 * htmlTalker.numberOfSpansPerUtterance.size();
+    return size;
+  }
+
+  // Returns the parse of |htmlInput| stored under |key|, or null.
+  public synchronized HtmlTalker get(String key, String htmlInput) {
+    Entry entry = entries.get(key);
+    if (entry == null || !matches(entry, htmlInput)) {
+      ++misses;
+      if (Config.LOGD) Log.d(TAG, String.format("Miss for %s: %d hits, %d misses", key, hits, misses));
+      return null;
+    }
+    ++hits;
+    if (Config.LOGD) Log.d(TAG, String.format("Hit for %s: %d hits, %d misses", key, hits, misses));
+    return entry.htmlTalker;
+  }
+
+  // Like get(), but without counting as a use.
+  public synchronized boolean contains(String key, String htmlInput) {
+    Entry entry = byName.get(key);
+    return entry != null && matches(entry, htmlInput);
+  }
+
+  public synchronized void put(String key, String htmlInput,
+                               HtmlTalker htmlTalker) {
+    Entry entry = new Entry();
+    entry.input = htmlInput;
+    entry.size = estimateSize(htmlInput, htmlTalker);
+    entry.htmlTalker = htmlTalker;
+    Entry old = entries.remove(key);
+    byName.remove(key);
+    if (old != null)
+      totalSize -= old.size;
+    if (entry.size > MAX_BYTES)
+      return;  // Would push everything else out.
+    entries.put(key, entry);
+    byName.put(key, entry);
+    totalSize += entry.size;
+    int evicted = 0;
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (totalSize > MAX_BYTES && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      totalSize -= eldest.getValue().size;
+      byName.remove(eldest.getKey());
+      it.remove();
+      ++evicted;
+    }
+    if (Config.LOGD) Log.d(TAG, String.format("Added %s, %dbytes: %d entries, %dbytes total, %d evicted", key, entry.size, entries.size(), totalSize, evicted));
+  }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Talking RSS Reader.
+ *
+ * @author sdoyon@google.com (Stephane Doyon)
+ */
+
+package com.googlecode.talkingrssreader.talkingrss;
+
+import android.util.Config;
+import android.util.Log;
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/** OpJournal: durable queue of the changes we make on the reader
+ * side (read marks, tags, subscriptions), so that they make it
+ * through failures and the app being killed.
+ */
+
+/* Each operation is appended to a log file before it is sent, and a
+   record saying it is done is appended once the server took it, or
+   once we give up on it. The first time the journal is used after a
+   start, the log is replayed: operations without a done record are
+   pending again. The log is rewritten with only the pending
+   operations once done records pile up.
+
+   An operation that undoes a pending one on the same item (removing
+   a tag that is yet to be added, unsubscribing from a feed that is yet
+   to be subscribed) cancels it out, and neither is sent, unless the
+   pending one is being sent already. Repeating a pending operation
+   gives back the pending one.
+
+   Read marks are sent in batches, to save on requests: once
+   MARK_BATCH_SIZE of them are due, or once the oldest one has waited
+   MAX_MARK_DELAY. Other operations are due right away. A failed
+   operation is retried with exponential backoff, and dropped after
+   MAX_ATTEMPTS. Sending with |force| ignores both batching and
+   backoff.
+
+   Like with ArticleStore, I/O errors are logged, and we carry on with
+   what is in memory. */
+
+public class OpJournal {
+  private static final String TAG = "talkingrss-journal";
+
+  private static final String LOG_FILE = "ops.log";
+  private static final int LOG_MAGIC = 0x54524f4a;  // "TROJ"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;  // magic + version
+
+  private static final byte RECORD_OP = 1;
+  private static final byte RECORD_DONE = 2;
+
+  // Kinds of operations.
+  static final byte MARK_READ = 1;
+  static final byte TAG_ITEM = 2;  // add or remove |tag| on |item|.
+  static final byte SUBSCRIBE = 3;  // or unsubscribe, from feed |item|.
+
+  static final int MARK_BATCH_SIZE = 20;
+  static final long MAX_MARK_DELAY = 2*60*1000;
+  private static final long MIN_BACKOFF = 30*1000;
+  private static final long MAX_BACKOFF = 60*60*1000;
+  private static final int MAX_ATTEMPTS = 10;
+  // Rewrite the log once it has this many done records.
+  private static final int MAX_DONE_RECORDS = 256;
+
+  static class Op {
+    long id;
+    byte kind;
+    String item;
+    String tag;  // For TAG_ITEM only.
+    boolean add;  // else remove
+    // Not persisted:
+    long queuedTime;  // 0 for operations from a previous run.
+    int attempts;
+    long nextAttempt;  // No attempt before then, unless forced.
+    boolean inFlight;
+
+    boolean sameTarget(byte kind, String item, String tag) {
+      return this.kind == kind && this.item.equals(item)
+          && (this.tag == null ? tag == null : this.tag.equals(tag));
+    }
+  }
+
+  private File logFile;
+  private RandomAccessFile log;
+  // Pending operations by id, in order. null until loaded.
+  private LinkedHashMap<Long, Op> pending;
+  private long lastId;
+  private int doneRecords;
+
+  public OpJournal(File dir) {
+    logFile = new File(dir, LOG_FILE);
+  }
+
+  // Records an operation. Returns the operation to send, which may be
+  // an identical one that was pending, or null if it cancelled out a
+  // pending one. With |sendNow|, the operation is claimed by the
+  // caller, who must report on it with done() or failed(). Otherwise
+  // it is left to takeDue().
+  public Op add(byte kind, String item, String tag,
+                boolean add, boolean sendNow) {
+    return add(kind, item, tag, add, sendNow, SystemClock.uptimeMillis());
+  }
+
+  // Same, for an operation that was queued at |queuedTime| (uptime),
+  // which counts towards MAX_MARK_DELAY.
+  public synchronized Op add(byte kind, String item, String tag,
+                             boolean add, boolean sendNow,
+                             long queuedTime) {
+    ensureLoaded();
+    for (Iterator<Op> it = pending.values().iterator(); it.hasNext(); ) {
+      Op op = it.next();
+      if (op.inFlight || !op.sameTarget(kind, item, tag))
+        continue;
+      if (op.add == add) {
+        if (sendNow)
+          op.inFlight = true;
+        return op;
+      }
+      if (Config.LOGD) Log.d(TAG, String.format("Operation on %s cancels out %d", item, op.id));
+      it.remove();
+      appendDone(op.id);
+      return null;
+    }
+    Op op = new Op();
+    op.id = ++lastId;
+    op.kind = kind;
+    op.item = item;
+    op.tag = tag;
+    op.add = add;
+    op.queuedTime = queuedTime;
+    op.inFlight = sendNow;
+    appendOp(op);
+    pending.put(op.id, op);
+    return op;
+  }
+
+  // Whether there is something due, else how long until there may be,
+  // 0 meaning nothing is pending.
+  public synchronized long timeToSend(boolean force) {
+    ensureLoaded();
+    long now = SystemClock.uptimeMillis();
+    long wait = 0;
+    int dueMarks = 0;
+    long oldestMark = Long.MAX_VALUE;
+    for (Op op : pending.values()) {
+      if (op.inFlight)
+        continue;
+      if (!force && op.nextAttempt > now) {
+        wait = minWait(wait, op.nextAttempt - now);
+        continue;
+      }
+      if (force || op.kind != MARK_READ)
+        return -1;
+      ++dueMarks;
+      oldestMark = Math.min(oldestMark, op.queuedTime);
+    }
+    if (dueMarks > 0) {
+      long delay = oldestMark + MAX_MARK_DELAY - now;
+      if (dueMarks >= MARK_BATCH_SIZE || delay <= 0)
+        return -1;
+      wait = minWait(wait, delay);
+    }
+    return wait;
+  }
+  private static long minWait(long wait, long w) {
+    return wait == 0 ? w : Math.min(wait, w);
+  }
+
+  // Claims the operations that are due, at most |maxMarks| read marks.
+  public synchronized ArrayList<Op> takeDue(boolean force, int maxMarks) {
+    ensureLoaded();
+    long now = SystemClock.uptimeMillis();
+    ArrayList<Op> ops = new ArrayList<Op>();
+    int marks = 0;
+    for (Op op : pending.values()) {
+      if (op.inFlight || (!force && op.nextAttempt > now))
+        continue;
+      if (op.kind == MARK_READ) {
+        if (marks == maxMarks)
+          continue;
+        ++marks;
+      }
+      op.inFlight = true;
+      ops.add(op);
+    }
+    return ops;
+  }
+
+  public synchronized void done(List<Op> ops) {
+    ensureLoaded();
+    for (Op op : ops) {
+      pending.remove(op.id);
+      appendDone(op.id);
+    }
+    maybeCompact();
+  }
+
+  // Schedules another attempt, or gives up. Returns true if this was
+  // the first failure of any of |ops|.
+  public synchronized boolean failed(List<Op> ops) {
+    ensureLoaded();
+    long now = SystemClock.uptimeMillis();
+    boolean first = false;
+    for (Op op : ops) {
+      op.inFlight = false;
+      ++op.attempts;
+      first |= op.attempts == 1;
+      if (op.attempts >= MAX_ATTEMPTS) {
+        Log.w(TAG, String.format("Giving up on operation %d on %s", op.id, op.item));
+        pending.remove(op.id);
+        appendDone(op.id);
+        continue;
+      }
+      op.nextAttempt = now + Math.min(
+          MIN_BACKOFF << Math.min(op.attempts - 1, 16), MAX_BACKOFF);
+    }
+    maybeCompact();
+    return first;
+  }
+
+  public void done(Op op) {
+    ArrayList<Op> ops = new ArrayList<Op>(1);
+    ops.add(op);
+    done(ops);
+  }
+  public boolean failed(Op op) {
+    ArrayList<Op> ops = new ArrayList<Op>(1);
+    ops.add(op);
+    return failed(ops);
+  }
+
+  // Forgets all pending operations, as when switching to another
+  // account.
+  public synchronized void clear() {
+    closeLog();
+    logFile.delete();
+    pending = null;
+    doneRecords = 0;
+  }
+
+  // Replays the log if not done yet.
+  private void ensureLoaded() {
+    if (pending != null)
+      return;
+    pending = new LinkedHashMap<Long, Op>();
+    doneRecords = 0;
+    try {
+      log = new RandomAccessFile(logFile, "rw");
+      if (log.length() < HEADER_SIZE) {
+        writeLogHeader(log);
+      } else {
+        log.seek(0);
+        if (log.readInt() != LOG_MAGIC || log.readInt() != VERSION) {
+          Log.w(TAG, "Discarding incompatible journal");
+          writeLogHeader(log);
+        } else {
+          replayLog();
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to open journal");
+      e.printStackTrace();
+      closeLog();
+    }
+    if (Config.LOGD) Log.d(TAG, String.format("%d pending operations", pending.size()));
+  }
+
+  private static void writeLogHeader(RandomAccessFile file)
+      throws IOException {
+    file.setLength(0);
+    file.writeInt(LOG_MAGIC);
+    file.writeInt(VERSION);
+  }
+
+  // Reads back the records. A truncated record at the end (from being
+  // killed while writing) is chopped off.
+  private void replayLog() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(logFile), 8*1024));
+    long offset = HEADER_SIZE;
+    long fileLength = log.length();
+    try {
+      in.skipBytes(HEADER_SIZE);
+      while (offset < fileLength) {
+        byte type = in.readByte();
+        long id = in.readLong();
+        int length = 1 + 8;
+        if (type == RECORD_OP) {
+          Op op = new Op();
+          op.id = id;
+          op.kind = in.readByte();
+          op.item = readString(in);
+          op.tag = readString(in);
+          op.add = in.readBoolean();
+          if (op.item == null)
+            throw new EOFException();
+          length += 1 + stringLength(op.item) + stringLength(op.tag) + 1;
+          pending.put(id, op);
+        } else if (type == RECORD_DONE) {
+          pending.remove(id);
+          ++doneRecords;
+        } else {
+          throw new EOFException();  // garbage, treat as truncated.
+        }
+        if (offset + length > fileLength)
+          throw new EOFException();
+        lastId = Math.max(lastId, id);
+        offset += length;
+      }
+    } catch (EOFException e) {
+      Log.w(TAG, String.format("Truncating journal at %d", offset));
+      log.setLength(offset);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] opRecord(Op op) throws IOException {
+    ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(128);
+    DataOutputStream record = new DataOutputStream(recordBytes);
+    record.writeByte(RECORD_OP);
+    record.writeLong(op.id);
+    record.writeByte(op.kind);
+    writeString(record, op.item);
+    writeString(record, op.tag);
+    record.writeBoolean(op.add);
+    record.flush();
+    return recordBytes.toByteArray();
+  }
+
+  private void appendOp(Op op) {
+    try {
+      append(opRecord(op));
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to append to journal");
+      e.printStackTrace();
+      closeLog();
+    }
+  }
+
+  private void appendDone(long id) {
+    try {
+      ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(9);
+      DataOutputStream record = new DataOutputStream(recordBytes);
+      record.writeByte(RECORD_DONE);
+      record.writeLong(id);
+      record.flush();
+      append(recordBytes.toByteArray());
+      ++doneRecords;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to append to journal");
+      e.printStackTrace();
+      closeLog();
+    }
+  }
+
+  private void append(byte[] record) throws IOException {
+    if (log == null)
+      return;  // Memory only, after an error.
+    log.seek(log.length());
+    log.write(record);
+  }
+
+  // Rewrites the log with only the pending operations, once done
+  // records pile up.
+  private void maybeCompact() {
+    if (log == null || doneRecords < MAX_DONE_RECORDS)
+      return;
+    try {
+      File tmp = new File(logFile.getPath() + ".tmp");
+      RandomAccessFile newLog = new RandomAccessFile(tmp, "rw");
+      try {
+        writeLogHeader(newLog);
+        for (Op op : pending.values())
+          newLog.write(opRecord(op));
+      } finally {
+        newLog.close();
+      }
+      closeLog();
+      if (!tmp.renameTo(logFile))
+        throw new IOException("rename failed");
+      log = new RandomAccessFile(logFile, "rw");
+      doneRecords = 0;
+      if (Config.LOGD) Log.d(TAG, String.format("Compacted journal: %d pending operations", pending.size()));
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to compact journal");
+      e.printStackTrace();
+      closeLog();
+    }
+  }
+
+  private void closeLog() {
+    if (log != null) {
+      try {
+        log.close();
+      } catch(IOException e) {}
+      log = null;
+    }
+  }
+
+  // Strings are stored as a length followed by UTF-8 bytes, -1 for
+  // null.
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+  private static String readString(DataInputStream in)
+      throws IOException {
+    int length = in.readInt();
+    if (length == -1)
+      return null;
+    if (length < 0)
+      throw new EOFException();  // corrupt string length.
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+  private static int stringLength(String s)
+      throws IOException {
+    return 4 + (s == null ? 0 : s.getBytes("UTF-8").length);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Talking RSS Reader.
+ *
+ * @author sdoyon@google.com (Stephane Doyon)
+ */
+
+package com.googlecode.talkingrssreader.talkingrss;
+
+import android.util.Config;
+import android.util.Log;
+import android.os.SystemClock;
+
+/** PagingPolicy: decides how many articles to request at a time, and
+ * how early to ask for more, from how fast the network and the user
+ * have been.
+ */
+
+/* We keep running averages of the request latency, the transfer rate,
+   the size of an entry and the time the user spends on an article.
+
+   The first page of a feed should arrive quickly so the user can
+   start: we ask for about as many entries as can be transferred in
+   one round trip. Later pages should last the user a while, so that
+   we don't go back to the network every few articles, without
+   fetching more than they are likely to read. And the next page must
+   be asked for early enough to arrive before the user gets to the
+   end: the trigger is how many articles the user gets through while
+   a page is being fetched.
+
+   Until we have measured anything, this behaves like the fixed policy
+   it replaces: 5 entries, then 25, and fetching more when 3 articles
+   away from the end. */
+
+public class PagingPolicy {
+  private static final String TAG = "talkingrss-paging";
+
+  private static final int DEFAULT_FIRST_PAGE = 5;
+  private static final int MIN_FIRST_PAGE = 3;
+  private static final int MAX_FIRST_PAGE = 10;
+  private static final int DEFAULT_PAGE = 25;
+  private static final int MIN_PAGE = 10;
+  private static final int MAX_PAGE = 100;
+  private static final int DEFAULT_TRIGGER = 3;
+  private static final int MAX_TRIGGER = 20;
+  // How long a page should keep the user busy.
+  private static final long PAGE_READING_TIME = 10*60*1000;
+  // Time on one article beyond which we assume the user took a break,
+  // rather than reading very slowly.
+  private static final long MAX_ARTICLE_TIME = 10*60*1000;
+  // Weight of a new sample in the running averages.
+  private static final float WEIGHT = 0.3f;
+
+  // Running averages, negative until first measured.
+  private float latency = -1;  // ms
+  private float msPerByte = -1;
+  private float bytesPerEntry = -1;
+  private float msPerArticle = -1;
+
+  private int lastIndex = -1;
+  private long lastIndexTime;
+
+  private static float average(float avg, float sample) {
+    if (avg < 0)
+      return sample;
+    return avg + WEIGHT * (sample - avg);
+  }
+
+  private static int clamp(int n, int min, int max) {
+    return Math.max(min, Math.min(max, n));
+  }
+
+  // Records a completed article fetch: |latency| until the reply
+  // started, |transferTime| to read and parse it, |bytes| as
+  // transferred and the number of entries it held.
+  public synchronized void noteFetch(long latency, long transferTime,
+                                     long bytes, int entries) {
+    this.latency = average(this.latency, latency);
+    if (bytes > 0)
+      msPerByte = average(msPerByte, (float)transferTime / bytes);
+    if (entries > 0)
+      bytesPerEntry = average(bytesPerEntry, (float)bytes / entries);
+    if (Config.LOGD) Log.d(TAG, String.format("Fetch: latency %dms, %dbytes/entry, %dms/KB", (int)this.latency, (int)bytesPerEntry, (int)(msPerByte * 1024)));
+  }
+
+  // Records that the user is now at article |index|. Only moving on to
+  // the next article tells us something about reading speed.
+  public synchronized void noteArticleShown(int index) {
+    long now = SystemClock.uptimeMillis();
+    if (lastIndex >= 0 && index == lastIndex + 1) {
+      long elapsed = now - lastIndexTime;
+      if (elapsed < MAX_ARTICLE_TIME)
+        msPerArticle = average(msPerArticle, elapsed);
+    }
+    lastIndex = index;
+    lastIndexTime = now;
+  }
+
+  // Expected time to fetch |n| entries, or -1 if unknown.
+  private float fetchTime(int n) {
+    if (latency < 0 || msPerByte < 0 || bytesPerEntry < 0)
+      return -1;
+    return latency + n * bytesPerEntry * msPerByte;
+  }
+
+  // Number of entries to ask for when starting on a feed.
+  public synchronized int firstPageSize() {
+    if (latency < 0 || msPerByte < 0 || bytesPerEntry < 0)
+      return DEFAULT_FIRST_PAGE;
+    int n = (int)(latency / (bytesPerEntry * msPerByte));
+    return clamp(n, MIN_FIRST_PAGE, MAX_FIRST_PAGE);
+  }
+
+  // Page size that should last the user PAGE_READING_TIME.
+  private int readingPageSize() {
+    if (msPerArticle < 0)
+      return DEFAULT_PAGE;
+    return clamp((int)(PAGE_READING_TIME / msPerArticle), MIN_PAGE, MAX_PAGE);
+  }
+
+  // Number of entries to ask for in a continuation.
+  public synchronized int pageSize() {
+    // It must also last past the fetch of the page after it.
+    int n = Math.max(readingPageSize(), prefetchTrigger() * 2);
+    return clamp(n, MIN_PAGE, MAX_PAGE);
+  }
+
+  // How many articles before the end of what we have to ask for more.
+  public synchronized int prefetchTrigger() {
+    float fetchTime = fetchTime(readingPageSize());
+    if (fetchTime < 0 || msPerArticle < 0)
+      return DEFAULT_TRIGGER;
+    // One more for safety: the user may speed up.
+    int n = (int)Math.ceil(fetchTime / msPerArticle) + 1;
+    return clamp(n, DEFAULT_TRIGGER, MAX_TRIGGER);
+  }
+}
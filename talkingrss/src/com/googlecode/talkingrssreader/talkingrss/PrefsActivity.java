@@ -34,7 +34,8 @@ import android.preference.ListPreference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 
-/* Activity to configure settings, currently auto-forward and speech rate.
+/* Activity to configure settings, currently auto-forward, speech rate,
+ * read-ahead and the speech queue.
  *
  * TODO: Speech language would belong here too, but: A) the french
  * accents are mishandled by this espeak for some reason, and B) need
@@ -71,11 +72,19 @@ public class PrefsActivity extends PreferenceActivity {
     Core.tts.setSpeechRate(rate);
 
     boolean autoForward = prefs.getBoolean("auto_forward", false);
+    int readAhead = Integer.parseInt(prefs.getString(
+        "read_ahead_pref", String.valueOf(Core.DEFAULT_READ_AHEAD)));
+    int speechQueue = Integer.parseInt(prefs.getString(
+        "speech_queue_pref", String.valueOf(Core.DEFAULT_SPEECH_QUEUE)));
     SharedPreferences otherPrefs
       = getSharedPreferences(Core.PREFS_NAME, MODE_PRIVATE);
     Editor editor = otherPrefs.edit();
     editor.putBoolean(Core.PREFS_AUTO_FORWARD, autoForward);
+    editor.putInt(Core.PREFS_READ_AHEAD, readAhead);
+    editor.putInt(Core.PREFS_SPEECH_QUEUE, speechQueue);
     editor.commit();
     Core.autoForwardSetting = autoForward;
+    Core.readAheadSetting = readAhead;
+    Core.speechQueueSetting = speechQueue;
   }
 }
@@ -28,6 +28,8 @@ import android.os.SystemClock;
 
 import java.net.URLEncoder;
 import java.net.URLDecoder;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -40,6 +42,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.SimpleTimeZone;
@@ -56,6 +59,7 @@ import org.xml.sax.SAXNotRecognizedException;
 import org.xml.sax.SAXNotSupportedException;
 
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.UnexpectedException;
+import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.NetworkException;
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.ReaderParseException;
 
 /** ReaderClientData: basic data model for all retrieved Reader feed
@@ -70,11 +74,12 @@ public class ReaderClientData {
   // third applying categories changes when a background tagging
   // requests completes.
 
+  private SAXParserFactory factory;
   private SAXParser parser;
 
   public ReaderClientData() {
     try {
-      SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory = SAXParserFactory.newInstance();
       factory.setNamespaceAware(false);
       try {
         factory.setFeature(
@@ -92,6 +97,12 @@ public class ReaderClientData {
     }
   }
 
+  // Notified on the parsing thread each time an entry has been added
+  // to a feed.
+  interface EntryListener {
+    void onEntryAdded(ReaderAtomFeed feed, ArticleEntry entry);
+  }
+
   // A feed as returned from http://www.google.com/reader/atom/...
   public class ReaderAtomFeed {
     String id;
@@ -105,20 +116,126 @@ public class ReaderClientData {
     // continuation.
     boolean excludeRead;
 
-    public void parse(String xmlString)
-        throws ReaderParseException {
-      try {
-        synchronized (ReaderClientData.this) {
-          long startTime = SystemClock.uptimeMillis();
-          parser.parse(new InputSource(new StringReader(xmlString)),
-                       new ReaderAtomFeedHandler());
-          long now = SystemClock.uptimeMillis();
-          if (Config.LOGD) Log.d(TAG, String.format("Parsed atom feed %dbytes in %dms", xmlString.length(), now-startTime));
+    // Key of this feed's first page in feedPages: a page depends on
+    // which items were asked for.
+    private String pageKey() {
+      return id + (excludeRead ? "|unread" : "|all");
+    }
+
+    // Number of entries the saved first page of this feed was asked
+    // for, or 0 if we have none to revalidate. The page must be asked
+    // for again with the same size for the server's answer to apply
+    // to it.
+    int firstPageSize() {
+      FeedPage page = feedPages.get(pageKey());
+      return page == null ? 0 : page.howMany;
+    }
+
+    // Keeps the entries just parsed as the first page of this feed,
+    // asked for as |howMany| entries.
+    void saveFirstPage(int howMany) {
+      FeedPage page = new FeedPage();
+      page.howMany = howMany;
+      page.title = title;
+      page.continuation = continuation;
+      synchronized (entries) {
+        page.entries = new ArrayList<ArticleEntry>(entries);
+      }
+      feedPages.put(pageKey(), page);
+    }
+
+    // Fills this empty feed from its saved first page. Returns false
+    // if there is none.
+    boolean restoreFirstPage() {
+      FeedPage page = feedPages.get(pageKey());
+      if (page == null)
+        return false;
+      title = page.title;
+      continuation = page.continuation;
+      entries.addAll(page.entries);
+      return true;
+    }
+
+    // For a feed restored from the store: its first page fetched again,
+    // to be merged in by mergeRefresh() on the UI thread.
+    volatile ReaderAtomFeed refresh;
+
+    // Merges |refresh| in. Entries we have are replaced by their fresh
+    // copy, with its current read state, and new ones go in front since
+    // they're newer. The entry at |currentIndex| is being shown, so it
+    // is kept and only its state is updated. Returns where that entry
+    // now is.
+    int mergeRefresh(int currentIndex) {
+      ReaderAtomFeed fresh = refresh;
+      refresh = null;
+      if (fresh == null)
+        return currentIndex;
+      ArrayList<ArticleEntry> added = new ArrayList<ArticleEntry>();
+      synchronized (entries) {
+        HashMap<String, Integer> positions = new HashMap<String, Integer>();
+        for (int i = 0; i < entries.size(); ++i)
+          positions.put(entries.get(i).tag, i);
+        for (ArticleEntry entry : fresh.entries) {
+          Integer i = positions.get(entry.tag);
+          if (i == null) {
+            added.add(entry);
+          } else if (i == currentIndex) {
+            ArticleEntry shown = entries.get(i);
+            shown.categories.clear();
+            shown.categories.addAll(entry.categories);
+            articles.put(shown.tag, shown);
+          } else {
+            entries.set(i, entry);
+          }
+        }
+        entries.addAll(0, added);
+      }
+      if (continuation == null)
+        continuation = fresh.continuation;
+      if (Config.LOGD) Log.d(TAG, String.format("Merged refresh: %d of %d entries new", added.size(), fresh.entries.size()));
+      return currentIndex + added.size();
+    }
+
+    // Whether an entry for |tag| is in this feed already, as when
+    // fetching again a page whose fetch failed part way.
+    private boolean hasEntry(String tag) {
+      synchronized (entries) {
+        for (ArticleEntry e : entries) {
+          if (e.tag.equals(tag))
+            return true;
         }
+      }
+      return false;
+    }
+
+    // Parses the atom reply as it is being read from the
+    // network. Each entry is published into |entries| as soon as its
+    // closing tag is parsed, so the first articles can be shown before
+    // the download completes. The stream is closed when done.
+    //
+    // The parse does not hold the ReaderClientData lock while waiting
+    // on the network: it uses its own parser instance and only takes
+    // the lock when touching the shared maps.
+    //
+    // If |cancellation| (may be null) gets cancelled, the parse stops
+    // at the next element with a ReaderParseException.
+    public void parse(InputStream stream, EntryListener listener,
+                      ReaderHttp.Cancellation cancellation)
+        throws ReaderParseException, NetworkException {
+      try {
+        long startTime = SystemClock.uptimeMillis();
+        newParser().parse(new InputSource(stream),
+                          new ReaderAtomFeedHandler(listener, cancellation));
+        long now = SystemClock.uptimeMillis();
+        if (Config.LOGD) Log.d(TAG, String.format("Parsed atom feed %d entries in %dms", entries.size(), now-startTime));
       } catch (IOException e) {
-        throw new UnexpectedException(e);
+        throw new NetworkException(e);
       } catch (SAXException e) {
         throw new ReaderParseException(e);
+      } finally {
+        try {
+          stream.close();
+        } catch(IOException e) {}
       }
     }
 
@@ -129,8 +246,13 @@ public class ReaderClientData {
       private boolean inEntryAuthor;
       private int ignoredLevel;  // depth of ignored tags
       private SimpleDateFormat dateFormat;
+      private EntryListener listener;  // may be null
+      private ReaderHttp.Cancellation cancellation;  // may be null
 
-      public ReaderAtomFeedHandler() {
+      public ReaderAtomFeedHandler(EntryListener listener,
+                                   ReaderHttp.Cancellation cancellation) {
+        this.listener = listener;
+        this.cancellation = cancellation;
         dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
         dateFormat.setTimeZone(new SimpleTimeZone(0, "GMT"));
       }
@@ -162,6 +284,8 @@ public class ReaderClientData {
       @Override
       public void startElement(String uri, String name, String qName,
                                Attributes attrs) throws SAXException {
+        if (cancellation != null && cancellation.isCancelled())
+          throw new SAXException("Cancelled");
         if (ignoredLevel > 0) {
           ignoredElementStart();
           return;
@@ -185,10 +309,12 @@ public class ReaderClientData {
             } else if (qName.equals("category")) {
               String term = attrs.getValue("term");
               if (term != null) {
-                term = stripUserId(term);
-                entry.categories.add(term);
-                if (isUserLabel(term) && !userLabels.containsKey(term))
-                  userLabels.put(term, new UserLabel(term));
+                synchronized (ReaderClientData.this) {
+                  term = stripUserId(term);
+                  entry.categories.add(term);
+                  if (isUserLabel(term) && !userLabels.containsKey(term))
+                    userLabels.put(term, new UserLabel(term));
+                }
               }
             } else if (qName.equals("summary") || qName.equals("content")) {
               charsAccumulator = new StringBuilder();
@@ -250,8 +376,15 @@ public class ReaderClientData {
             } else if (qName.equals("summary") || qName.equals("content")) {
               entry.text = unEscapeEntities(text);
             } else if (qName.equals("entry")) {
-              articles.put(entry.tag, entry);
-              entries.add(entry);
+              // Publish the entry right away, readers may already be
+              // waiting on it. Unless it was published by a previous
+              // attempt at this page.
+              if (!hasEntry(entry.tag)) {
+                articles.put(entry.tag, entry);
+                entries.add(entry);
+                if (listener != null)
+                  listener.onEntryAdded(ReaderAtomFeed.this, entry);
+              }
               entry = null;
             }
           } else if (inEntryAuthor) {
@@ -264,7 +397,9 @@ public class ReaderClientData {
             if (qName.equals("title")) {
               sourceFeed.title = unEscapeEntities(text);
             } else if (qName.equals("source")) {
-              rssFeeds.put(sourceFeed.id, sourceFeed);
+              synchronized (ReaderClientData.this) {
+                rssFeeds.put(sourceFeed.id, sourceFeed);
+              }
               sourceFeed = null;
             }
           }
@@ -273,6 +408,18 @@ public class ReaderClientData {
     }
   }
 
+  // Returns a fresh SAX parser. The shared |parser| is reserved for
+  // the lists, which are parsed under the ReaderClientData lock.
+  private SAXParser newParser() {
+    try {
+      return factory.newSAXParser();
+    } catch (ParserConfigurationException e) {
+      throw new UnexpectedException(e);
+    } catch (SAXException e) {
+      throw new UnexpectedException(e);
+    }
+  }
+
   public static String unEscapeEntities(String text) {
     return text.replace("&lt;", "<")
         .replace("&gt;", ">")
@@ -313,7 +460,11 @@ public class ReaderClientData {
         + escapeEntities(labelText);
   }
 
+  // Parses the lists into a fresh set of maps, see resetListsInfo().
   class ReaderListsHandler extends DefaultHandler {
+    private Map<String, RssFeed> newRssFeeds;
+    private Map<String, UserLabel> newUserLabels;
+    private Map<String, Integer> newUnreadCounts;
     private StringBuilder charsAccumulator;
     private boolean inSubscriptionsList;
     private RssFeed feed;
@@ -328,6 +479,14 @@ public class ReaderClientData {
     private boolean inTagEntryId;
     private int ignoredLevel;  // depth of ignored tags
 
+    ReaderListsHandler(Map<String, RssFeed> newRssFeeds,
+                       Map<String, UserLabel> newUserLabels,
+                       Map<String, Integer> newUnreadCounts) {
+      this.newRssFeeds = newRssFeeds;
+      this.newUserLabels = newUserLabels;
+      this.newUnreadCounts = newUnreadCounts;
+    }
+
     @Override
     public void characters(char[] ch, int start, int length) {
       if (charsAccumulator != null)
@@ -470,7 +629,7 @@ public class ReaderClientData {
               }
             } else {  // !inFeedId && !inFeedTitle
               if (qName.equals("object")) {
-                rssFeeds.put(feed.id, feed);
+                newRssFeeds.put(feed.id, feed);
                 feed = null;
               }
             }
@@ -481,8 +640,8 @@ public class ReaderClientData {
                   String labelId = stripUserId(unEscapeEntities(text));
                   feed.categories.add(labelId);
                   if (isUserLabel(labelId)
-                      && !userLabels.containsKey(labelId))
-                    userLabels.put(labelId, new UserLabel(labelId));
+                      && !newUserLabels.containsKey(labelId))
+                    newUserLabels.put(labelId, new UserLabel(labelId));
                   inCategoryEntryId = false;
                 }
               } else {  // !inLabelId
@@ -512,7 +671,7 @@ public class ReaderClientData {
             if (qName.equals("number")) {
               try {
                 Integer count = Integer.valueOf(text);
-                unreadCounts.put(unreadEntryId, count);
+                newUnreadCounts.put(unreadEntryId, count);
               } catch (NumberFormatException e) {
                 new ReaderParseException(e);
               }
@@ -534,8 +693,8 @@ public class ReaderClientData {
             if (qName.equals("string")) {
               String labelId = stripUserId(unEscapeEntities(text));
               if (isUserLabel(labelId)
-                  && !userLabels.containsKey(labelId))
-                userLabels.put(labelId, new UserLabel(labelId));
+                  && !newUserLabels.containsKey(labelId))
+                newUserLabels.put(labelId, new UserLabel(labelId));
               // Hack: get our user id from starred state.
               if (labelId.endsWith("/state/com.google/starred")
                   && labelId.startsWith("user/")) {
@@ -572,6 +731,9 @@ public class ReaderClientData {
     Set<String> categories
       = Collections.synchronizedSet(new HashSet<String>());
     Date published, updated;
+    // Set on entries restored from the store, of which only the tag is
+    // known until ArticleStore.fillArticle() reads back the rest.
+    volatile boolean isStub;
 
     // Returns the id of the RSS feed from which this article was obtained.
     public RssFeed getRssFeed() {
@@ -597,15 +759,16 @@ public class ReaderClientData {
     }
   }
 
+  // The following three maps are never cleared: a refresh builds new
+  // maps and swaps them in, so readers always see either the old or
+  // the new lists in full.
+
   // Map of RSS feeds by id.
-  Map<String, RssFeed> rssFeeds
-      = Collections.synchronizedMap(new HashMap<String, RssFeed>());
+  volatile Map<String, RssFeed> rssFeeds = newMap();
   // Map of user-defined labels by id.
-  Map<String, UserLabel> userLabels
-      = Collections.synchronizedMap(new HashMap<String, UserLabel>());
+  volatile Map<String, UserLabel> userLabels = newMap();
   // Map of unread count by label or feed or state id.
-  Map<String, Integer> unreadCounts
-      = Collections.synchronizedMap(new HashMap<String, Integer>());
+  volatile Map<String, Integer> unreadCounts = newMap();
   // Map of articles by tag.
   Map<String, ArticleEntry> articles
       = Collections.synchronizedMap(new HashMap<String, ArticleEntry>());
@@ -617,16 +780,43 @@ public class ReaderClientData {
 
   // Whether we completed the initial fetch of the subscription list.
   boolean haveSubscriptionsList;
+  // The lists as last fetched, kept so they can be revalidated
+  // rather than downloaded again. Null if we loaded them some other
+  // way.
+  volatile String[] listsXml;
+
+  // The first page of recently viewed feeds, as last fetched, so it
+  // can be reused when the server says it hasn't changed. Only
+  // touched from the feed fetching thread.
+  static class FeedPage {
+    int howMany;
+    String title, continuation;
+    ArrayList<ArticleEntry> entries;
+  }
+  private static final int MAX_FEED_PAGES = 10;
+  private Map<String, FeedPage> feedPages
+      = Collections.synchronizedMap(
+          new LinkedHashMap<String, FeedPage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, FeedPage> eldest) {
+              return size() > MAX_FEED_PAGES;
+            }
+          });
 
   String thisUserId;  // Inferred Google Reader user ID.
 
-  public void parseListsInfo(String xmlString)
+  private static <V> Map<String, V> newMap() {
+    return Collections.synchronizedMap(new HashMap<String, V>());
+  }
+
+  private void parseListsInfo(String xmlString, ReaderListsHandler handler)
       throws ReaderParseException {
     try {
       synchronized (ReaderClientData.this) {
         long startTime = SystemClock.uptimeMillis();
         parser.parse(new InputSource(new StringReader(xmlString)),
-                     new ReaderListsHandler());
+                     handler);
         long now = SystemClock.uptimeMillis();
         if (Config.LOGD) Log.d(TAG, String.format("Parsed list %dbytes in %dms", xmlString.length(), now-startTime));
       }
@@ -637,16 +827,211 @@ public class ReaderClientData {
     }
   }
 
-  public void resetListsInfo(String xml1, String xml2, String xml3)
+  // Compact binary snapshot of the lists info (feeds, labels, unread
+  // counts and our user id), so it can be restored on startup before
+  // the lists are fetched again. Ids and labels recur a lot, so each
+  // distinct string is written once in a table and then referred to by
+  // its index.
+  private static final int LISTS_SNAPSHOT_VERSION = 1;
+
+  public void writeListsSnapshot(DataOutputStream out)
+      throws IOException {
+    RssFeed[] feeds;
+    String[] labelIds;
+    String[] countIds;
+    Integer[] counts;
+    synchronized (ReaderClientData.this) {
+      synchronized (rssFeeds) {
+        feeds = rssFeeds.values().toArray(new RssFeed[0]);
+      }
+      synchronized (userLabels) {
+        labelIds = userLabels.keySet().toArray(new String[0]);
+      }
+      synchronized (unreadCounts) {
+        countIds = unreadCounts.keySet().toArray(new String[0]);
+        counts = new Integer[countIds.length];
+        for (int i = 0; i < countIds.length; ++i)
+          counts[i] = unreadCounts.get(countIds[i]);
+      }
+    }
+    HashMap<String, Integer> table = new HashMap<String, Integer>();
+    ArrayList<String> strings = new ArrayList<String>();
+    ArrayList<String[]> feedCategories = new ArrayList<String[]>();
+    for (RssFeed feed : feeds) {
+      intern(table, strings, feed.id);
+      intern(table, strings, feed.title);
+      String[] categories;
+      synchronized (feed.categories) {
+        categories = feed.categories.toArray(new String[0]);
+      }
+      for (String category : categories)
+        intern(table, strings, category);
+      feedCategories.add(categories);
+    }
+    for (String id : labelIds)
+      intern(table, strings, id);
+    for (String id : countIds)
+      intern(table, strings, id);
+
+    out.writeInt(LISTS_SNAPSHOT_VERSION);
+    out.writeBoolean(thisUserId != null);
+    if (thisUserId != null)
+      out.writeUTF(thisUserId);
+    writeVarInt(out, strings.size());
+    for (String s : strings)
+      out.writeUTF(s);
+    writeVarInt(out, feeds.length);
+    for (int i = 0; i < feeds.length; ++i) {
+      writeStringRef(out, table, feeds[i].id);
+      writeStringRef(out, table, feeds[i].title);
+      String[] categories = feedCategories.get(i);
+      writeVarInt(out, categories.length);
+      for (String category : categories)
+        writeStringRef(out, table, category);
+    }
+    writeVarInt(out, labelIds.length);
+    for (String id : labelIds)
+      writeStringRef(out, table, id);
+    writeVarInt(out, countIds.length);
+    for (int i = 0; i < countIds.length; ++i) {
+      writeStringRef(out, table, countIds[i]);
+      writeVarInt(out, counts[i] == null ? 0 : counts[i].intValue());
+    }
+  }
+
+  // Restores the lists from a snapshot made by
+  // writeListsSnapshot(). The current lists are only replaced once the
+  // whole snapshot was read successfully.
+  public void readListsSnapshot(DataInputStream in)
+      throws IOException {
+    if (in.readInt() != LISTS_SNAPSHOT_VERSION)
+      throw new IOException("Unsupported lists snapshot version");
+    String userId = in.readBoolean() ? in.readUTF() : null;
+    String[] strings = new String[readVarInt(in)];
+    for (int i = 0; i < strings.length; ++i)
+      strings[i] = in.readUTF();
+    HashMap<String, RssFeed> newFeeds = new HashMap<String, RssFeed>();
+    int n = readVarInt(in);
+    for (int i = 0; i < n; ++i) {
+      RssFeed feed = new RssFeed();
+      feed.id = readStringRef(in, strings);
+      feed.title = readStringRef(in, strings);
+      int nCategories = readVarInt(in);
+      for (int j = 0; j < nCategories; ++j)
+        feed.categories.add(readStringRef(in, strings));
+      newFeeds.put(feed.id, feed);
+    }
+    HashMap<String, UserLabel> newLabels = new HashMap<String, UserLabel>();
+    n = readVarInt(in);
+    for (int i = 0; i < n; ++i) {
+      String id = readStringRef(in, strings);
+      newLabels.put(id, new UserLabel(id));
+    }
+    HashMap<String, Integer> newCounts = new HashMap<String, Integer>();
+    n = readVarInt(in);
+    for (int i = 0; i < n; ++i) {
+      String id = readStringRef(in, strings);
+      newCounts.put(id, readVarInt(in));
+    }
+    synchronized (ReaderClientData.this) {
+      rssFeeds = Collections.synchronizedMap(newFeeds);
+      userLabels = Collections.synchronizedMap(newLabels);
+      unreadCounts = Collections.synchronizedMap(newCounts);
+      listsParsed = null;
+      if (thisUserId == null)
+        thisUserId = userId;
+      haveSubscriptionsList = true;
+    }
+  }
+
+  private static void intern(HashMap<String, Integer> table,
+                             ArrayList<String> strings, String s) {
+    if (s != null && !table.containsKey(s)) {
+      table.put(s, strings.size());
+      strings.add(s);
+    }
+  }
+  // References are shifted by one so that 0 stands for null.
+  private static void writeStringRef(DataOutputStream out,
+                                     HashMap<String, Integer> table,
+                                     String s)
+      throws IOException {
+    writeVarInt(out, s == null ? 0 : table.get(s) + 1);
+  }
+  private static String readStringRef(DataInputStream in, String[] strings)
+      throws IOException {
+    int ref = readVarInt(in);
+    if (ref == 0)
+      return null;
+    if (ref > strings.length)
+      throw new IOException("Bad string reference");
+    return strings[ref - 1];
+  }
+  // Non-negative ints, 7 bits per byte.
+  private static void writeVarInt(DataOutputStream out, int value)
+      throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+  private static int readVarInt(DataInputStream in)
+      throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("Bad varint");
+  }
+
+  // What one of the lists parsed to.
+  private static class ParsedList {
+    HashMap<String, RssFeed> rssFeeds = new HashMap<String, RssFeed>();
+    HashMap<String, UserLabel> userLabels = new HashMap<String, UserLabel>();
+    HashMap<String, Integer> unreadCounts = new HashMap<String, Integer>();
+  }
+  // The parse of each of listsXml, so that a list that wasn't modified
+  // needn't be parsed again. Guarded by this.
+  private ParsedList[] listsParsed;
+
+  // Replaces the lists info with what's parsed from the given
+  // lists. Only the lists flagged in |modified| are parsed again, the
+  // others were parsed from the same XML last time. The new maps are
+  // merged on the side and swapped in at the end. Note the tags list
+  // should come first: it tells us our user id, which the other lists
+  // use.
+  public void resetListsInfo(String[] xml, boolean[] modified)
     throws ReaderParseException {
     synchronized (ReaderClientData.this) {
-      // Zap previous state and parse all lists.
-      rssFeeds.clear();
-      userLabels.clear();
-      unreadCounts.clear();
-      parseListsInfo(xml1);
-      parseListsInfo(xml2);
-      parseListsInfo(xml3);
+      ParsedList[] parsed = new ParsedList[xml.length];
+      for (int i = 0; i < xml.length; ++i) {
+        if (!modified[i] && listsParsed != null
+            && listsParsed.length == xml.length) {
+          parsed[i] = listsParsed[i];
+          continue;
+        }
+        parsed[i] = new ParsedList();
+        parseListsInfo(xml[i], new ReaderListsHandler(
+            parsed[i].rssFeeds, parsed[i].userLabels,
+            parsed[i].unreadCounts));
+      }
+      Map<String, RssFeed> newRssFeeds = newMap();
+      Map<String, UserLabel> newUserLabels = newMap();
+      Map<String, Integer> newUnreadCounts = newMap();
+      for (ParsedList list : parsed) {
+        newRssFeeds.putAll(list.rssFeeds);
+        newUserLabels.putAll(list.userLabels);
+        newUnreadCounts.putAll(list.unreadCounts);
+      }
+      rssFeeds = newRssFeeds;
+      userLabels = newUserLabels;
+      unreadCounts = newUnreadCounts;
+      listsXml = xml;
+      listsParsed = parsed;
       haveSubscriptionsList = true;
     }
   }
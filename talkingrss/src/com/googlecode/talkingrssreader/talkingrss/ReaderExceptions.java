@@ -69,6 +69,8 @@ public class ReaderExceptions {
     }
     public static HttpException httpException(int code, String message) {
       switch (code) {
+        case 304:
+          return new HttpNotModifiedException();
         case 403:
           return new HttpForbiddenException();
         case 401:
@@ -78,6 +80,13 @@ public class ReaderExceptions {
       }
     }
   }
+  // Our cached copy is still valid. Only happens on conditional
+  // requests.
+  public static class HttpNotModifiedException extends HttpException {
+    public HttpNotModifiedException() {
+      super(304, "Not Modified");
+    }
+  }
   public static class HttpForbiddenException extends HttpException {
     public HttpForbiddenException() {
       super(403, "Forbidden");
@@ -27,22 +27,44 @@ import android.util.Log;
 import android.os.SystemClock;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.net.SocketException;
 import java.net.URLEncoder;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.NameValuePair;
@@ -54,6 +76,7 @@ import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.NetworkExcept
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.ProtocolException;
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.HttpException;
 import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.HttpForbiddenException;
+import com.googlecode.talkingrssreader.talkingrss.ReaderExceptions.HttpNotModifiedException;
 
 /** ReaderHttp: Connecting to the unofficial Google Reader API over HTTP. */
 
@@ -99,8 +122,39 @@ public class ReaderHttp {
   private String clientParam;
   private String authToken;  // ClientLogin.
   private String apiToken;
-  ThreadLocal<HttpClient> httpClientPerThread
-      = new ThreadLocal<HttpClient>();
+  // One client shared by all threads, over a thread safe pool of
+  // connections, so that every worker gets to reuse the kept alive
+  // connections to the server, even across thread restarts.
+  // Enough for the three list fetchers, the feed getter and the read
+  // marker to all be busy at once.
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 5;
+  private static final int MAX_CONNECTIONS = 8;
+  // How long a request waits for a connection from the pool. A
+  // connection that is never released (its reply not consumed) would
+  // otherwise hold up a worker forever once the pool is exhausted.
+  private static final long CONNECTION_REQUEST_TIMEOUT = 30*1000;
+  // Connections idle for longer than this are closed: the server or
+  // some proxy has likely given up on them anyway.
+  private static final long IDLE_CONNECTION_TIMEOUT = 30*1000;
+  private ClientConnectionManager connectionManager;
+  private HttpClient httpClient;
+
+  // Cache validators from the last reply to GET requests, by URL,
+  // used to make conditional requests. Callers keep the parsed
+  // result themselves and ask for revalidation when they have one.
+  private static class Validators {
+    String etag, lastModified;
+  }
+  private static final int MAX_VALIDATORS = 64;
+  private Map<String, Validators> validators
+      = Collections.synchronizedMap(
+          new LinkedHashMap<String, Validators>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Validators> eldest) {
+              return size() > MAX_VALIDATORS;
+            }
+          });
 
   public ReaderHttp() {
     try {
@@ -108,6 +162,20 @@ public class ReaderHttp {
     } catch(UnsupportedEncodingException e) {
       throw new UnexpectedException(e);
     }
+    HttpParams params = new BasicHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(
+        params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+    ConnManagerParams.setTimeout(params, CONNECTION_REQUEST_TIMEOUT);
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    SchemeRegistry schemeRegistry = new SchemeRegistry();
+    schemeRegistry.register(new Scheme(
+        "http", PlainSocketFactory.getSocketFactory(), 80));
+    schemeRegistry.register(new Scheme(
+        "https", SSLSocketFactory.getSocketFactory(), 443));
+    connectionManager
+        = new ThreadSafeClientConnManager(params, schemeRegistry);
+    httpClient = new DefaultHttpClient(connectionManager, params);
   }
 
   public void setAuthToken(String authToken) {
@@ -115,14 +183,17 @@ public class ReaderHttp {
   }
 
   private HttpClient getHttpClient() {
-    HttpClient httpClient = httpClientPerThread.get();
-    if (httpClient == null) {
-      httpClient = new DefaultHttpClient();
-      httpClientPerThread.set(httpClient);
-    }
+    // Cheap enough to do before each request, and saves a thread.
+    closeIdleConnections(IDLE_CONNECTION_TIMEOUT);
     return httpClient;
   }
 
+  // Closes pooled connections idle for more than |idleTime| ms.
+  public void closeIdleConnections(long idleTime) {
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+  }
+
   public static String urlEncode(String s) {
     try {
       return URLEncoder.encode(s, "UTF-8");
@@ -147,24 +218,87 @@ public class ReaderHttp {
     return query_string;
   }
 
+  // Lets another thread give up on a request in progress: the
+  // request is aborted, which makes any pending or further read from
+  // its reply fail. Whoever consumes the reply should also poll
+  // isCancelled() to stop at a convenient point.
+  public static class Cancellation {
+    private volatile boolean cancelled;
+    private HttpUriRequest request;
+    public synchronized void cancel() {
+      cancelled = true;
+      if (request != null)
+        request.abort();
+    }
+    public boolean isCancelled() {
+      return cancelled;
+    }
+    private synchronized void setRequest(HttpUriRequest request) {
+      this.request = request;
+      if (cancelled)
+        request.abort();
+    }
+  }
+
   // Performs an HTTP request (GET or POST) and returns an InputStream
   // to the reply.
-  private InputStream doHttpRequest(HttpUriRequest request)
+  private CountingInputStream doHttpRequest(HttpUriRequest request)
+      throws ReaderException {
+    return getContent(request, execute(request));
+  }
+
+  // Performs an HTTP request and checks the reply status. A 304 reply
+  // has no body and leaves the connection reusable, no need to abort
+  // for it.
+  private HttpResponse execute(HttpUriRequest request)
       throws ReaderException {
+    // Atom and the lists are XML, which compresses very well.
+    request.addHeader("Accept-Encoding", "gzip, deflate");
     try {
       HttpResponse response = getHttpClient().execute(request);
       StatusLine status = response.getStatusLine();
       if (status.getStatusCode() != HttpStatus.SC_OK) {
-        request.abort();
+        if (status.getStatusCode() != HttpStatus.SC_NOT_MODIFIED)
+          request.abort();
         throw HttpException.httpException(status.getStatusCode(),
                                           status.getReasonPhrase());
       }
+      return response;
+    } catch (ConnectionPoolTimeoutException e) {
+      Log.w(TAG, "Timed out waiting for a pooled connection");
+      request.abort();
+      throw new NetworkException(e);
+    } catch (IOException e) {
+      request.abort();
+      throw new NetworkException(e);
+    }
+  }
+
+  // Returns an InputStream to the body of a successful reply,
+  // decompressing it on the fly if the server compressed it.
+  private CountingInputStream getContent(HttpUriRequest request,
+                                         HttpResponse response)
+      throws ReaderException {
+    try {
       HttpEntity reply = response.getEntity();
       if (reply == null) {
         request.abort();
         throw new ProtocolException("null response entity");
       }
-      return reply.getContent();  // an InputStream
+      InputStream is = reply.getContent();
+      CountingInputStream wire = null;
+      Header encoding = reply.getContentEncoding();
+      if (encoding != null) {
+        String value = encoding.getValue();
+        if (value.equalsIgnoreCase("gzip")) {
+          wire = new CountingInputStream(is, null);
+          is = new GZIPInputStream(wire, 8*1024);
+        } else if (value.equalsIgnoreCase("deflate")) {
+          wire = new CountingInputStream(is, null);
+          is = new InflaterInputStream(wire, new Inflater(), 8*1024);
+        }
+      }
+      return new CountingInputStream(is, wire);
     } catch (IOException e) {
       request.abort();
       throw new NetworkException(e);
@@ -172,7 +306,7 @@ public class ReaderHttp {
   }
 
   // Prepares and performs a POST request.
-  private InputStream doPost(String url,
+  private CountingInputStream doPost(String url,
                                     ArrayList<NameValuePair> params,
                                     boolean addAuthHeaderAndApiToken)
       throws ReaderException {
@@ -209,9 +343,15 @@ public class ReaderHttp {
     return doHttpRequest(http_post);
   }
 
-  // Prepares and performs a GET request.
-  private InputStream doGet(String url,
-                                  ArrayList<NameValuePair> params)
+  // Prepares and performs a GET request. If |revalidate| is set, the
+  // caller has kept the result of an earlier identical request, and
+  // we make the request conditional on that reply being outdated: an
+  // HttpNotModifiedException is thrown if it is still good.
+  // |cancellation| may be null.
+  private CountingInputStream doGet(String url,
+                                  ArrayList<NameValuePair> params,
+                                  boolean revalidate,
+                                  Cancellation cancellation)
       throws ReaderException {
     String query_string = "";
     if (params != null)
@@ -225,7 +365,37 @@ public class ReaderHttp {
     http_get.addHeader(
         AUTHORIZATION_HEADER_NAME,
         AUTHORIZATION_HEADER_VALUE_PREFIX + authToken);
-    return doHttpRequest(http_get);
+    if (revalidate) {
+      Validators v = validators.get(url);
+      if (v != null) {
+        if (v.etag != null)
+          http_get.addHeader("If-None-Match", v.etag);
+        if (v.lastModified != null)
+          http_get.addHeader("If-Modified-Since", v.lastModified);
+      }
+    }
+    if (cancellation != null)
+      cancellation.setRequest(http_get);
+    HttpResponse response = execute(http_get);
+    saveValidators(url, response);
+    return getContent(http_get, response);
+  }
+
+  // Remembers the validators from a reply, for the next request to
+  // the same URL.
+  private void saveValidators(String url, HttpResponse response) {
+    Header etag = response.getFirstHeader("ETag");
+    Header lastModified = response.getFirstHeader("Last-Modified");
+    if (etag == null && lastModified == null) {
+      validators.remove(url);
+      return;
+    }
+    Validators v = new Validators();
+    if (etag != null)
+      v.etag = etag.getValue();
+    if (lastModified != null)
+      v.lastModified = lastModified.getValue();
+    validators.put(url, v);
   }
 
   // Reads an InputStream until the end and returns the content in a String.
@@ -251,6 +421,82 @@ public class ReaderHttp {
     return sw.toString();
   }
 
+  // Wraps a reply stream to count the bytes read through it, so that
+  // the transfer can be logged once the consumer is done with it,
+  // whether it read to the end or closed early. For a compressed
+  // reply, |wire| counts the compressed bytes underneath.
+  static class CountingInputStream extends FilterInputStream {
+    private CountingInputStream wire;  // may be null
+    private String what;  // null if not logging
+    private long startTime, readTime;
+    private long count;
+    private boolean logged;
+    CountingInputStream(InputStream in, CountingInputStream wire) {
+      super(in);
+      this.wire = wire;
+    }
+    // Enables logging of the transfer under the name |what|.
+    void logAs(String what, long startTime, long readTime) {
+      this.what = what;
+      this.startTime = startTime;
+      this.readTime = readTime;
+    }
+    @Override
+    public int read() throws IOException {
+      int c = super.read();
+      if (c == -1)
+        logTransfer();
+      else
+        ++count;
+      return c;
+    }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n == -1)
+        logTransfer();
+      else
+        count += n;
+      return n;
+    }
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+    @Override
+    public void close() throws IOException {
+      logTransfer();
+      super.close();
+    }
+    long getCount() {
+      return count;
+    }
+    // Bytes actually transferred.
+    long getWireCount() {
+      return wire != null ? wire.getCount() : count;
+    }
+    // Time until the reply started.
+    long getLatency() {
+      return readTime - startTime;
+    }
+    long getReadTime() {
+      return readTime;
+    }
+    private void logTransfer() {
+      if (logged || what == null)
+        return;
+      logged = true;
+      long now = SystemClock.uptimeMillis();
+      if (wire == null) {
+        if (Config.LOGD) Log.d(TAG, String.format("%s: request took %dms, transferred %dbytes in %dms", what, readTime-startTime, count, now-readTime));
+      } else {
+        if (Config.LOGD) Log.d(TAG, String.format("%s: request took %dms, transferred %dbytes compressed to %dbytes in %dms", what, readTime-startTime, count, wire.getCount(), now-readTime));
+      }
+    }
+  }
+
   // ClientLogin.
   public String login(String username, String password)
       throws ReaderException {
@@ -281,8 +527,14 @@ public class ReaderHttp {
     throw new ProtocolException("Failed to parse login reply");
   }
 
-  public String getArticlesByTag(String tag, String[] exclude,
-                                 int howMany, String continuation)
+  // Requests a batch of articles and returns a stream to the atom
+  // reply, so that it can be parsed while it is being
+  // downloaded. The caller must close the stream. See doGet() about
+  // |revalidate| and |cancellation|.
+  public CountingInputStream getArticlesByTag(String tag, String[] exclude,
+                                      int howMany, String continuation,
+                                      boolean revalidate,
+                                      Cancellation cancellation)
       throws ReaderException {
     // Escaping is unclear. Feed in the form http://blabla.com/bla
     // strangely mustn't be escaped, else they won't be
@@ -307,12 +559,10 @@ public class ReaderHttp {
       }
     }
     long startTime = SystemClock.uptimeMillis();
-    InputStream is = doGet(url, params);
+    CountingInputStream is = doGet(url, params, revalidate, cancellation);
     long readTime = SystemClock.uptimeMillis();
-    String out = readAll(is);
-    long now = SystemClock.uptimeMillis();
-    if (Config.LOGD) Log.d(TAG, String.format("Article fetch: request took %dms, transferred %dbytes in %dms", readTime-startTime, out.length(), now-readTime));
-    return out;
+    is.logAs("Article fetch", startTime, readTime);
+    return is;
   }
 
   /*
@@ -321,26 +571,32 @@ public class ReaderHttp {
   }
   */
 
-  public String getList(String list)
+  // Fetches one of the lists. See doGet() about |revalidate|.
+  public String getList(String list, boolean revalidate)
     throws ReaderException {
     String url = API_URL + list;
     ArrayList<NameValuePair> params = new ArrayList<NameValuePair>();
     params.add(new BasicNameValuePair("output", "xml"));
     //all=true
     long startTime = SystemClock.uptimeMillis();
-    InputStream is = doGet(url, params);
+    CountingInputStream is;
+    try {
+      is = doGet(url, params, revalidate, null);
+    } catch (HttpNotModifiedException e) {
+      long now = SystemClock.uptimeMillis();
+      if (Config.LOGD) Log.d(TAG, String.format("list fetch: not modified, request took %dms", now-startTime));
+      throw e;
+    }
     long readTime = SystemClock.uptimeMillis();
-    String out = readAll(is);
-    long now = SystemClock.uptimeMillis();
-    if (Config.LOGD) Log.d(TAG, String.format("list fetch: request took %dms, transferred %dbytes in %dms", readTime-startTime, out.length(), now-readTime));
-    return out;
+    is.logAs("list fetch", startTime, readTime);
+    return readAll(is);
   }
 
   // Obtain the short-lived token used to authenticate API operations.
   private void fetchApiToken()
       throws ReaderException {
     if (Config.LOGD) Log.d(TAG, "Fetching API token");
-    apiToken = readAll(doGet(TOKEN_URL, null));
+    apiToken = readAll(doGet(TOKEN_URL, null, false, null));
   }
 
   // Performs a POST request for an API operation, first obtaining an
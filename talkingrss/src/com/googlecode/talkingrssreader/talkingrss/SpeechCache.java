@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Talking RSS Reader.
+ *
+ * @author sdoyon@google.com (Stephane Doyon)
+ */
+
+package com.googlecode.talkingrssreader.talkingrss;
+
+import android.os.Environment;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.util.Config;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpeechElement;
+import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpokenText;
+import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.Utterance;
+
+/** SpeechCache: keeps upcoming text synthesized to sound files, so
+ * that speaking it is just playing it back.
+ */
+
+/* The TTS service works through a single queue: synthesizing to a
+   file holds up any speech queued after it. So we only synthesize
+   while nothing is being said, one text at a time, so that speech
+   started meanwhile is held up by at most one synthesis. What we want
+   synthesized is the text following the current position in the
+   article, then the start of the next article.
+
+   A recording is played back by the TTS service itself: each one is
+   registered with addSpeech() under a key of its own, a marker that
+   can't be mistaken for article text, and that key is what we speak.
+   That keeps speech going through the same queue as earcons, with the
+   same completion callbacks. The service can't forget a key, so a key
+   whose recording was deleted is simply never spoken again: the text
+   is spoken as is. The keys only live as long as our connection to
+   the TTS service, so the recordings are dropped along with it.
+
+   The TTS service runs in another process and can't write in our
+   private cache directory, so the files go on external storage. What
+   is there from a previous run is deleted, since the TTS service
+   won't know about it. The files are bounded by size, least recently
+   used first out, except those of the texts last queued for speech,
+   which the service may still have to play. */
+
+public class SpeechCache {
+  private static final String TAG = "talkingrss-speechcache";
+
+  private static final long MAX_BYTES = 16*1024*1024;
+  // Beyond that, we assume the TTS service dropped the synthesis,
+  // and its callback will never come.
+  private static final long SYNTHESIS_TIMEOUT = 30*1000;
+  private static final String SYNTHESIS_ID_PREFIX = "synth";
+  private static final String KEY_FORMAT = "[talkingrss-speech %d]";
+
+  private static class Entry {
+    String text;
+    String key;  // under which the recording is registered
+    File file;
+    long size;
+  }
+
+  private File dir;
+  private boolean unavailable;
+  private int fileCounter;
+  private LinkedHashMap<String, Entry> entries
+      = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long totalSize;
+  // Texts queued for speech, whose recordings must stay.
+  private HashSet<String> pinned = new HashSet<String>();
+
+  // Whether speech is idle, so that we may synthesize.
+  private boolean synthesizing;
+  // Texts to synthesize, in order.
+  private ArrayList<String> wanted = new ArrayList<String>();
+  private ArrayList<String> nextArticleWanted = new ArrayList<String>();
+  private Entry inFlight;
+  private String inFlightId;
+  private long inFlightTime;
+
+  // Texts of the SpokenText elements of |count| utterances from |from|.
+  static ArrayList<String> spokenTexts(List<Utterance> utterances,
+                                       int from, int count) {
+    ArrayList<String> texts = new ArrayList<String>();
+    for (int i = Math.max(from, 0);
+         i < from + count && i < utterances.size(); ++i) {
+      for (SpeechElement element : utterances.get(i)) {
+        if (element instanceof SpokenText)
+          texts.add(element.toString());
+      }
+    }
+    return texts;
+  }
+
+  // Sets up the directory on first use.
+  private boolean ensureDir() {
+    if (dir != null)
+      return true;
+    if (unavailable)
+      return false;
+    if (!Environment.MEDIA_MOUNTED.equals(
+            Environment.getExternalStorageState())) {
+      // Maybe later.
+      return false;
+    }
+    File d = new File(Environment.getExternalStorageDirectory(),
+                      "talkingrss/speech");
+    if (!d.isDirectory() && !d.mkdirs()) {
+      Log.w(TAG, "Cannot create " + d);
+      unavailable = true;
+      return false;
+    }
+    File[] leftovers = d.listFiles();
+    if (leftovers != null) {
+      for (File f : leftovers)
+        f.delete();
+    }
+    dir = d;
+    return true;
+  }
+
+  public synchronized boolean hasRecording(String text) {
+    return entries.containsKey(text);
+  }
+
+  // What to speak for |text|: the key of its recording if we have one,
+  // else |text| itself.
+  public synchronized String textToSpeak(String text) {
+    Entry entry = entries.get(text);
+    if (entry == null)
+      return text;
+    return entry.key;
+  }
+
+  // Sets the texts currently queued for speech, replacing those set
+  // before: their recordings won't be evicted.
+  public synchronized void pin(List<String> texts) {
+    pinned.clear();
+    pinned.addAll(texts);
+  }
+
+  // Drops all recordings, when the connection to the TTS service that
+  // knows their keys goes away.
+  public synchronized void clear() {
+    for (Entry entry : entries.values())
+      entry.file.delete();
+    entries.clear();
+    totalSize = 0;
+    if (inFlight != null) {
+      inFlight.file.delete();
+      inFlight = null;
+    }
+    stopSynthesis();
+  }
+
+  // Asks for |texts| to be synthesized, in order, until
+  // stopSynthesis(). Replaces what was asked for before.
+  public synchronized void synthesizeAhead(List<String> texts) {
+    synthesizing = true;
+    wanted.clear();
+    wanted.addAll(texts);
+    wanted.addAll(nextArticleWanted);
+    synthesizeNext();
+  }
+
+  // Sets the texts from the start of the next article, which come
+  // after the current article's in what we synthesize.
+  public synchronized void setNextArticle(List<String> texts) {
+    nextArticleWanted.clear();
+    nextArticleWanted.addAll(texts);
+  }
+
+  // Called when speech starts: nothing more is sent to the TTS
+  // service. A synthesis already sent still completes.
+  public synchronized void stopSynthesis() {
+    wanted.clear();
+    synthesizing = false;
+  }
+
+  private void synthesizeNext() {
+    if (inFlight != null) {
+      if (SystemClock.uptimeMillis() - inFlightTime < SYNTHESIS_TIMEOUT)
+        return;
+      if (Config.LOGD) Log.d(TAG, "Gave up on " + inFlightId);
+      inFlight.file.delete();
+      inFlight = null;
+    }
+    if (!synthesizing || Core.tts == null || !ensureDir())
+      return;
+    while (!wanted.isEmpty()) {
+      String text = wanted.remove(0);
+      if (entries.containsKey(text))
+        continue;
+      Entry entry = new Entry();
+      entry.text = text;
+      entry.file = new File(dir, String.format("u%d.wav", ++fileCounter));
+      entry.key = String.format(KEY_FORMAT, fileCounter);
+      String id = SYNTHESIS_ID_PREFIX + fileCounter;
+      HashMap<String, String> params = new HashMap<String, String>();
+      params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, id);
+      if (Core.tts.synthesizeToFile(text, params, entry.file.getPath())
+          != TextToSpeech.SUCCESS) {
+        Log.w(TAG, "synthesizeToFile failed");
+        return;
+      }
+      inFlight = entry;
+      inFlightId = id;
+      inFlightTime = SystemClock.uptimeMillis();
+      return;
+    }
+  }
+
+  // Whether |utteranceId| is from one of our syntheses.
+  public static boolean isSynthesisId(String utteranceId) {
+    return utteranceId.startsWith(SYNTHESIS_ID_PREFIX);
+  }
+
+  // Completion callback for a synthesis, from the TTS service.
+  public synchronized void onSynthesisCompleted(String utteranceId) {
+    if (inFlight == null || !utteranceId.equals(inFlightId))
+      return;
+    Entry entry = inFlight;
+    inFlight = null;
+    entry.size = entry.file.length();
+    if (entry.size == 0) {
+      Log.w(TAG, "Synthesis produced nothing for " + utteranceId);
+      entry.file.delete();
+      return;
+    }
+    if (Core.tts == null) {
+      entry.file.delete();
+      return;
+    }
+    if (pinned.contains(entry.text) && entries.containsKey(entry.text)) {
+      // The recording we have may be queued, keep it.
+      entry.file.delete();
+      synthesizeNext();
+      return;
+    }
+    Core.tts.addSpeech(entry.key, entry.file.getPath());
+    Entry old = entries.put(entry.text, entry);
+    if (old != null) {
+      totalSize -= old.size;
+      old.file.delete();
+    }
+    totalSize += entry.size;
+    int evicted = 0;
+    Iterator<Entry> it = entries.values().iterator();
+    while (totalSize > MAX_BYTES && it.hasNext()) {
+      Entry e = it.next();
+      if (pinned.contains(e.text))
+        continue;
+      totalSize -= e.size;
+      e.file.delete();
+      it.remove();
+      ++evicted;
+    }
+    if (Config.LOGD) Log.d(TAG, String.format("Synthesized %s, %dbytes: %d entries, %dbytes total, %d evicted", utteranceId, entry.size, entries.size(), totalSize, evicted));
+    synthesizeNext();
+  }
+}
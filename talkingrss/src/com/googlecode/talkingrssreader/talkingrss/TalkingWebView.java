@@ -83,11 +83,12 @@ import java.util.Calendar;
 import java.util.Comparator;
 import java.text.Collator;
 import java.util.HashMap;
+import java.util.ArrayList;
 
 import android.speech.tts.TextToSpeech;
 
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker;
-import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.HtmlParseException;
+import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.Chunk;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.Utterance;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpokenText;
 import com.googlecode.talkingrssreader.talkingrss.HtmlTalker.SpeechElement;
@@ -111,7 +112,6 @@ public class TalkingWebView
   private static final long[] MOVED_VIBR_PATTERN = SCROLLED_VIBR_PATTERN;
 
   public interface Callback {
-    void onParseError(HtmlParseException e);
     // If onViewReady() returns true, then we start speaking the html.
     boolean onViewReady();
     void onUserInteraction();
@@ -127,8 +127,129 @@ public class TalkingWebView
     public String emptyArticle;
   }
 
+  // A WebView that shows one TalkingWebView after another: the page
+  // with our javascript is loaded once, and each article is swapped
+  // into it from javascript, which saves inflating and setting up a
+  // new WebView for each article.
+  public static class Surface {
+    private WebView webView;
+    private Handler handler = new Handler();
+    // The TalkingWebView being shown, and its generation number, which
+    // javascript passes back with its callbacks so that callbacks
+    // about an article that was swapped out get dropped. Accessed
+    // from the WebView's thread.
+    private TalkingWebView current;
+    private int generation;
+    private boolean pageRequested;
+    private boolean pageLoaded;
+
+    public Surface(WebView webView) {
+      this.webView = webView;
+      webView.getSettings().setJavaScriptEnabled(true);
+      webView.addJavascriptInterface(new MyJSInterface(), "mycb");
+    }
+
+    // Called when the surface is discarded.
+    public void destroy() {
+      webView.destroy();
+      webView = null;
+    }
+
+    // Makes |talkingWebView| the one shown, once the page is loaded.
+    private void show(TalkingWebView talkingWebView, String baseUrl) {
+      synchronized (this) {
+        current = talkingWebView;
+        talkingWebView.generation = ++generation;
+      }
+      if (pageLoaded) {
+        talkingWebView.swapIn();
+      } else if (!pageRequested) {
+        pageRequested = true;
+        webView.loadDataWithBaseURL(
+            baseUrl, myJSCode, "text/html", "utf-8", null);
+      }
+    }
+
+    private void release(TalkingWebView talkingWebView) {
+      synchronized (this) {
+        if (current == talkingWebView)
+          current = null;
+      }
+      // Images of the article may still be loading, but not the page
+      // itself, which the next article needs.
+      if (pageLoaded)
+        webView.stopLoading();
+    }
+
+    private synchronized TalkingWebView target(int generation) {
+      return generation == this.generation ? current : null;
+    }
+
+    // Interface for callbacks from javascript in the webView.
+    private class MyJSInterface {
+      public void reportPageLoaded() {
+        handler.post(new Runnable() {
+            public void run() {
+              if (webView == null)
+                return;
+              if (Config.LOGD) Log.d(TAG, "Page loaded");
+              pageLoaded = true;
+              TalkingWebView talkingWebView = target(generation);
+              if (talkingWebView != null)
+                talkingWebView.swapIn();
+            }
+          });
+      }
+      public void reportLoaded(int generation) {
+        TalkingWebView talkingWebView = target(generation);
+        if (talkingWebView != null)
+          talkingWebView.handler.sendMessage(
+              talkingWebView.handler.obtainMessage(MSG_WEBVIEW_ONLOAD));
+      }
+      public void scrolledToUtterance(int generation, int utterance) {
+        TalkingWebView talkingWebView = target(generation);
+        if (talkingWebView == null)
+          return;
+        talkingWebView.handler.removeMessages(MSG_WEBVIEW_ONSCROLL);
+        talkingWebView.handler.sendMessage(
+            talkingWebView.handler.obtainMessage(
+                MSG_WEBVIEW_ONSCROLL, utterance, 0));
+      }
+      public String baseUrl(int generation) {
+        TalkingWebView talkingWebView = target(generation);
+        if (talkingWebView == null || talkingWebView.baseUrl == null)
+          return "about:blank";
+        return talkingWebView.baseUrl;
+      }
+      public String footerHtml(int generation) {
+        TalkingWebView talkingWebView = target(generation);
+        if (talkingWebView == null || talkingWebView.htmlFooter == null)
+          return "";
+        return talkingWebView.htmlFooter;
+      }
+      // HTML of chunk number |chunk|, fetched once.
+      public String chunkHtml(int generation, int chunk) {
+        TalkingWebView talkingWebView = target(generation);
+        if (talkingWebView == null)
+          return "";
+        ArrayList<String> chunksHtml = talkingWebView.chunksHtml;
+        synchronized (chunksHtml) {
+          String html = chunksHtml.get(chunk);
+          chunksHtml.set(chunk, null);
+          return html;
+        }
+      }
+      // For debugging.
+      public void report(String x) {
+        Log.d(TAG, String.format("JS report: <%s>", x));
+      }
+    }
+  }
+
   private Context parentContext;
-  private WebView webView;
+  private Surface surface;
+  // Our number on |surface|.
+  private int generation;
   private TextToSpeech tts;
   private Vibrator vibrator;
   private PowerManager powerManager;
@@ -137,15 +258,28 @@ public class TalkingWebView
   private String htmlInput;
   private String htmlFooter;  // Shown but not spoken.
   private String baseUrl;
+  // Name of the parse in Core.htmlTalkerCache, null to not cache.
+  private String cacheKey;
 
   public TalkingWebView(Context parentContext,
                         WebView webView, TextToSpeech tts,
                         Vibrator vibrator, PowerManager powerManager,
                         SpokenMessages messages,
                         Callback callback,
-                        String htmlInput, String htmlFooter, String baseUrl) {
+                        String htmlInput, String htmlFooter, String baseUrl,
+                        String cacheKey) {
+    this(parentContext, new Surface(webView), tts, vibrator, powerManager,
+         messages, callback, htmlInput, htmlFooter, baseUrl, cacheKey);
+  }
+  public TalkingWebView(Context parentContext,
+                        Surface surface, TextToSpeech tts,
+                        Vibrator vibrator, PowerManager powerManager,
+                        SpokenMessages messages,
+                        Callback callback,
+                        String htmlInput, String htmlFooter, String baseUrl,
+                        String cacheKey) {
     this.parentContext = parentContext;
-    this.webView = webView;
+    this.surface = surface;
     this.tts = tts;
     this.vibrator = vibrator;
     this.powerManager = powerManager;
@@ -154,6 +288,7 @@ public class TalkingWebView
     this.htmlInput = htmlInput;
     this.htmlFooter = htmlFooter;
     this.baseUrl = baseUrl;
+    this.cacheKey = cacheKey;
 
     this.tts.setOnUtteranceCompletedListener(this);
     registerSpeechStoppedReceiver();
@@ -164,11 +299,27 @@ public class TalkingWebView
   private static final int MSG_WEBVIEW_ONLOAD = 20;
   private static final int MSG_WEBVIEW_ONSCROLL = 21;
 
-  private HtmlTalker htmlTalker;
+  // Long articles are parsed a chunk at a time: we start speaking once
+  // the first few utterances are in, and the rest of the article is
+  // added to the page as it comes.
+  private static final int FIRST_CHUNK_UTTERANCES = 8;
+  private static final int CHUNK_UTTERANCES = 40;
+
+  // The utterances parsed so far, null until the first chunk is in.
+  private ArrayList<Utterance> utterances;
+  // Number of spans per utterance of the first chunk, which javascript
+  // gets when the article is swapped in.
+  private ArrayList<Integer> firstNumberOfSpans;
+  private boolean parseComplete;
+  // Speech got ahead of the parse, and resumes with the next chunk.
+  private boolean waitingForParse;
+  // Chunks after the first one, kept until the WebView has them.
+  private ArrayList<Chunk> pendingChunks = new ArrayList<Chunk>();
+  // HTML of chunks handed to javascript, by chunk number, starting
+  // with the first one. Accessed from the WebView's thread.
+  private ArrayList<String> chunksHtml = new ArrayList<String>();
   // Background html parsing task.
-  AsyncTask<String, Void, HtmlTalker> htmlParseTask;
-  // Exception returned from background thread.
-  private volatile HtmlParseException pendingException;
+  AsyncTask<String, Chunk, HtmlTalker> htmlParseTask;
   private int currentUtterance = -1;
   private int lastEnqueuedUtterance = -1;
   private int ttsCallbackUtteranceId;  // unique id per speak() request.
@@ -176,23 +327,24 @@ public class TalkingWebView
   private boolean isTalking;
   private boolean continueTalking;  // Auto-forrward to next utterance.
   private boolean skippingBackwards;  // Speaking previous sentence.
-  // Set to true when we get the onload callback from javascript.
+  // Set to true when javascript reports our article swapped in.
   private boolean webViewLoaded;
   // Set to drop pending handler messages on a discarded view.
   private boolean isDead;
 
   // Called when we are discarded.
   public void kill() {
+    if (Config.LOGD) Log.d(TAG, String.format("Made %d TTS calls, %d before coalescing", ttsCalls, uncoalescedTtsCalls));
     this.tts.setOnUtteranceCompletedListener(null);
     unregisterSpeechStoppedReceiver();
     stopTalking();
     isDead = true;
+    handler.removeCallbacks(synthesisRunner);
     if (htmlParseTask != null) {
       htmlParseTask.cancel(true);
       htmlParseTask = null;
     }
-    webView.stopLoading();
-    webView = null;
+    surface.release(this);
   }
 
   public boolean isTalking() {
@@ -207,6 +359,7 @@ public class TalkingWebView
             if (!isDead) {
               if (Config.LOGD) Log.d(TAG, "WebView loaded");
               webViewLoaded = true;
+              appendPendingChunks();
               showSpoken();
             }
             break;
@@ -229,32 +382,25 @@ public class TalkingWebView
       }
     };
 
-  // Interface for callbacks from javascript in the webView.
-  private class MyJSInterface {
-    public void reportLoaded() {
-      handler.sendMessage(handler.obtainMessage(
-          MSG_WEBVIEW_ONLOAD));
-    }
-    public void scrolledToUtterance(int utterance) {
-      handler.removeMessages(MSG_WEBVIEW_ONSCROLL);
-      handler.sendMessage(handler.obtainMessage(
-          MSG_WEBVIEW_ONSCROLL, utterance, 0));
-    }
-    // For debugging.
-    public void report(String x) {
-      Log.d(TAG, String.format("JS report: <%s>", x));
-    }
-  }
-  private MyJSInterface jsInterface = new MyJSInterface();
 
+  // The page of a Surface. Articles go in the article div, with the
+  // footer after them.
   private static final String myJSCode =
       "<head>" +
+      "<base>\n" +
       "<style type=\"text/css\">\n" +
-      "  .spoken { color: green }\n" +
       "</style>\n" +
       "<script type=\"text/javascript\">\n" +
-      "    var gNumberOfSpans = [%s];\n" +
-      "    var gShownUtterance = null;\n" +
+      "    // Generation number of the article shown, 0 for none.\n" +
+      "    var gGeneration = 0;\n" +
+      "    var gNumberOfSpans = [];\n" +
+      "    // The base URL of the article.\n" +
+      "    var gBase = document.getElementsByTagName(\"base\")[0];\n" +
+      "    // The style sheet just above: it holds a single rule, which\n" +
+      "    // highlights the spans of the shown utterance.\n" +
+      "    var gHighlightSheet = document.styleSheets[document.styleSheets.length - 1];\n" +
+      "    // First span element of each utterance, or null.\n" +
+      "    var gFirstSpans = [];\n" +
       "    var gScrollTarget = 0;\n" +
       "    var gScrollTimeout = null;\n" +
       "    function getVerticalPosition(node) {\n" +
@@ -264,43 +410,89 @@ public class TalkingWebView
       "      } while (node = node.offsetParent);\n" +
       "      return offset;\n" +
       "    }\n" +
+      "    // Vertical position of each utterance, by index, for those laid\n" +
+      "    // out so far. An utterance without spans gets the position of the\n" +
+      "    // one before, so that positions are sorted.\n" +
+      "    var gPositions = [];\n" +
+      "    function firstSpans() {\n" +
+      "      for (var i = gFirstSpans.length; i < gNumberOfSpans.length; ++i)\n" +
+      "        gFirstSpans.push(gNumberOfSpans[i] > 0 ? document.getElementById(\"utt\" + i + \"_0\") : null);\n" +
+      "      return gFirstSpans;\n" +
+      "    }\n" +
+      "    function utterancePositions() {\n" +
+      "      var spans = firstSpans();\n" +
+      "      for (var i = gPositions.length; i < gNumberOfSpans.length; ++i) {\n" +
+      "        var pos = i > 0 ? gPositions[i-1] : 0;\n" +
+      "        if (spans[i] != null)\n" +
+      "          pos = Math.max(pos, getVerticalPosition(spans[i]));\n" +
+      "        gPositions.push(pos);\n" +
+      "      }\n" +
+      "      return gPositions;\n" +
+      "    }\n" +
+      "    function layoutChanged() {\n" +
+      "      gPositions = [];\n" +
+      "    }\n" +
+      "    function watchImages(node) {\n" +
+      "      var images = node.getElementsByTagName(\"img\");\n" +
+      "      for (var i = 0; i < images.length; ++i)\n" +
+      "        images[i].onload = layoutChanged;\n" +
+      "    }\n" +
       "    function showSpoken(utterance) {\n" +
       "      if (utterance >= gNumberOfSpans.length) return;\n" +
       "      var numSpans;\n" +
-      "      if (gShownUtterance != null) {\n" +
-      "        var idPrefix = \"utt\" + gShownUtterance + \"_\";\n" +
-      "        numSpans = gNumberOfSpans[gShownUtterance];\n" +
-      "        for (i = 0; i < numSpans; ++i) {\n" +
-      "          document.getElementById(idPrefix + i).className = \"\";\n" +
-      "        }\n" + 
-      "      }\n" +
+      "      if (gHighlightSheet.cssRules.length > 0) gHighlightSheet.deleteRule(0);\n" +
       "      if (utterance >= 0 && (numSpans = gNumberOfSpans[utterance]) > 0) {\n" +
-      "        var idPrefix = \"utt\" + utterance + \"_\";\n" +
-      "        tag = document.getElementById(idPrefix + \"0\");\n" +
-      "        scrollTarget = getVerticalPosition(tag);\n" +
+      "        var scrollTarget = utterancePositions()[utterance];\n" +
       "        var scrollMax = document.body.scrollHeight - document.body.clientHeight;\n" +
       "        if (scrollMax < 0) scrollMax = 0;\n" +
       "        if (scrollTarget > scrollMax) scrollTarget = scrollMax;\n" +
       "        window.scrollTo(0, scrollTarget);\n" +
       "        gScrollTarget = scrollTarget;\n" +
-      "        for (i = 0; i < numSpans; ++i) {\n" +
-      "          document.getElementById(idPrefix + i).className = \"spoken\";\n" +
-      "        }\n" + 
-      "        gShownUtterance = utterance;\n" +
+      "        var idPrefix = \"#utt\" + utterance + \"_\";\n" +
+      "        var selector = idPrefix + 0;\n" +
+      "        for (var i = 1; i < numSpans; ++i) selector += \",\" + idPrefix + i;\n" +
+      "        gHighlightSheet.insertRule(selector + \" { color: green }\", 0);\n" +
       "      }\n" +
       "    }\n" +
       "    function handleScroll() {\n" +
       "      var scrollTop = document.body.scrollTop;\n" +
       "      var midScreen = document.body.scrollTop + screen.height/2;\n" +
-      "      for (i = 0; i < gNumberOfSpans.length; ++i) {\n" +
-      "        var tag = document.getElementById(\"utt\" + i + \"_0\");\n" +
-      "        var pos = getVerticalPosition(tag);\n" +
-      "        if (pos > midScreen) return;\n" +
-      "        if (pos >= scrollTop) {\n" +
-      "          window.mycb.scrolledToUtterance(i);\n" +
-      "          return;\n" +
-      "        }\n" +
+      "      var positions = utterancePositions();\n" +
+      "      // First utterance at or below the top of the screen.\n" +
+      "      var lo = 0, hi = positions.length;\n" +
+      "      while (lo < hi) {\n" +
+      "        var mid = (lo + hi) >> 1;\n" +
+      "        if (positions[mid] < scrollTop) lo = mid + 1;\n" +
+      "        else hi = mid;\n" +
       "      }\n" +
+      "      while (lo < positions.length && gNumberOfSpans[lo] == 0) ++lo;\n" +
+      "      if (lo < positions.length && positions[lo] <= midScreen)\n" +
+      "        window.mycb.scrolledToUtterance(gGeneration, lo);\n" +
+      "    }\n" +
+      "    function showArticle(generation, numberOfSpans) {\n" +
+      "      if (gScrollTimeout != null) clearTimeout(gScrollTimeout);\n" +
+      "      gGeneration = generation;\n" +
+      "      gNumberOfSpans = numberOfSpans;\n" +
+      "      gFirstSpans = [];\n" +
+      "      gPositions = [];\n" +
+      "      if (gHighlightSheet.cssRules.length > 0) gHighlightSheet.deleteRule(0);\n" +
+      "      gBase.href = window.mycb.baseUrl(generation);\n" +
+      "      var article = document.getElementById(\"article\");\n" +
+      "      article.innerHTML = window.mycb.chunkHtml(generation, 0);\n" +
+      "      watchImages(article);\n" +
+      "      document.getElementById(\"footer\").innerHTML = window.mycb.footerHtml(generation);\n" +
+      "      window.scrollTo(0, 0);\n" +
+      "      gScrollTarget = 0;\n" +
+      "      window.mycb.reportLoaded(generation);\n" +
+      "    }\n" +
+      "    function appendChunk(generation, chunk, numberOfSpans) {\n" +
+      "      if (generation != gGeneration) return;\n" +
+      "      var div = document.createElement(\"div\");\n" +
+      "      div.innerHTML = window.mycb.chunkHtml(generation, chunk);\n" +
+      "      watchImages(div);\n" +
+      "      var article = document.getElementById(\"article\");\n" +
+      "      while (div.firstChild) article.appendChild(div.firstChild);\n" +
+      "      gNumberOfSpans = gNumberOfSpans.concat(numberOfSpans);\n" +
       "    }\n" +
       "    function myOnScroll() {\n" +
       "      //window.mycb.report(\"myOnScroll: \" + document.body.scrollTop + \" target \" +gScrollTarget);\n" +
@@ -310,94 +502,169 @@ public class TalkingWebView
       "    }\n" +
       "</script>\n" +
       "</head>\n" +
-      "<body onload=\"javascript:window.mycb.reportLoaded();\" onscroll=\"javascript:myOnScroll();\" >\n";
+      "<body onload=\"javascript:window.mycb.reportPageLoaded();\" onresize=\"javascript:layoutChanged();\" onscroll=\"javascript:myOnScroll();\" >\n" +
+      "<div id=\"article\"></div> <div id=\"footer\"></div></body>";
 
   private void setup() {
+    if (cacheKey != null) {
+      final HtmlTalker cached = Core.htmlTalkerCache.get(cacheKey, htmlInput);
+      if (cached != null) {
+        if (Config.LOGD) Log.d(TAG, "Using cached html parse");
+        // Not from within the constructor: our owner doesn't know
+        // about us yet.
+        handler.post(new Runnable() {
+            public void run() {
+              if (!isDead)
+                addChunk(cached.allInOneChunk());
+            }
+          });
+        return;
+      }
+    }
+
     // Have the actual parsing done in a background thread, for the
-    // odd long article that might cause an ANR.
+    // odd long article that might cause an ANR. Chunks are handed over
+    // as they are parsed.
 
-    htmlParseTask = new AsyncTask<String, Void, HtmlTalker>() {
+    htmlParseTask = new AsyncTask<String, Chunk, HtmlTalker>() {
       protected HtmlTalker doInBackground(String... htmlInput) {
-        try {
-          long startTime = SystemClock.uptimeMillis();
-          HtmlTalker htmlTalker = HtmlTalker.parse(htmlInput[0]);
-          long now = SystemClock.uptimeMillis();
-          if (Config.LOGD) Log.d(TAG, String.format("Parsed html in %dms", now-startTime));
-          // Turn this on to dump the html for this article to sdcard
-          // for debugging.
-          if (false) {
-            try {
-              FileWriter fw = new FileWriter("/sdcard/talkingrss.out0");
-              BufferedWriter bw = new BufferedWriter(fw, 16384);
-              bw.write(htmlInput[0]);
-              bw.close();
-              String outHtml = htmlTalker.fullHtml.toString();
-              fw = new FileWriter("/sdcard/talkingrss.out");
-              bw = new BufferedWriter(fw, 16384);
-              bw.write(outHtml);
-              bw.close();
-            } catch(IOException e) {
-              e.printStackTrace();
-            }
+        long startTime = SystemClock.uptimeMillis();
+        HtmlTalker htmlTalker = HtmlTalker.startParse(htmlInput[0]);
+        Chunk chunk = htmlTalker.parseMore(FIRST_CHUNK_UTTERANCES);
+        if (Config.LOGD) Log.d(TAG, String.format("Parsed first chunk in %dms", SystemClock.uptimeMillis()-startTime));
+        publishProgress(chunk);
+        while (!chunk.isLast) {
+          if (isCancelled())
+            return null;
+          chunk = htmlTalker.parseMore(CHUNK_UTTERANCES);
+          publishProgress(chunk);
+        }
+        long now = SystemClock.uptimeMillis();
+        if (Config.LOGD) Log.d(TAG, String.format("Parsed html in %dms", now-startTime));
+        if (cacheKey != null)
+          Core.htmlTalkerCache.put(cacheKey, htmlInput[0], htmlTalker);
+        // Turn this on to dump the html for this article to sdcard
+        // for debugging.
+        if (false) {
+          try {
+            FileWriter fw = new FileWriter("/sdcard/talkingrss.out0");
+            BufferedWriter bw = new BufferedWriter(fw, 16384);
+            bw.write(htmlInput[0]);
+            bw.close();
+            String outHtml = htmlTalker.fullHtml.toString();
+            fw = new FileWriter("/sdcard/talkingrss.out");
+            bw = new BufferedWriter(fw, 16384);
+            bw.write(outHtml);
+            bw.close();
+          } catch(IOException e) {
+            e.printStackTrace();
           }
-          return htmlTalker;
-        } catch(HtmlParseException e) {
-          Log.w(TAG, "HtmlParseError");
-          pendingException = e;
-          return null;
         }
+        return htmlTalker;
+      }
+      protected void onProgressUpdate(Chunk... chunks) {
+        if (!isDead)
+          addChunk(chunks[0]);
       }
       protected void onPostExecute(HtmlTalker htmlTalker) {
         htmlParseTask = null;
-        if (isDead)
-          return;
-        if (htmlTalker == null) {
-          callback.onParseError(pendingException);
-        } else {
-          TalkingWebView.this.htmlTalker = htmlTalker;
-          String outHtml = htmlTalker.fullHtml.toString();
-
-          // Do a string join of htmlTalker.numberOfSpansPerUtterance.
-          StringBuilder builder = new StringBuilder();
-          boolean first = true;
-          for (int spans : htmlTalker.numberOfSpansPerUtterance) {
-            if (first) {
-              first = false;
-            } else {
-              builder.append(",");
-            }
-            builder.append(String.valueOf(spans));
-          }
-
-          // Put the numberOfSpans array into the JS code.
-          String jsCode = String.format(
-              myJSCode, builder.toString());
-          
-          webView.getSettings().setJavaScriptEnabled(true);
-          webView.addJavascriptInterface(jsInterface, "mycb");
-
-          // Concatenate the JS code, article and footer.  Note the footer
-          // is added at this late stage because we don't want it spoken.
-          String wvHtml = String.format("%s %s %s</body>",
-                                      jsCode, outHtml, htmlFooter);
-          webView.loadDataWithBaseURL(
-              baseUrl, wvHtml, "text/html", "utf-8", null);
-          webView.requestFocus();
-
-          currentUtterance = 0;
-          if (callback.onViewReady())
-            _startTalking(true);
-        }
       }
     }.execute(htmlInput);
   }
 
+  // Takes in a newly parsed chunk: the first one loads the page and
+  // starts talking, others are added to the page.
+  private void addChunk(Chunk chunk) {
+    if (Config.LOGD) Log.d(TAG, String.format("Chunk of %d utterances at %d", chunk.utterances.size(), chunk.firstUtterance));
+    parseComplete = chunk.isLast;
+    if (utterances == null) {
+      utterances = new ArrayList<Utterance>(chunk.utterances);
+      showParsed(chunk);
+      return;
+    }
+    utterances.addAll(chunk.utterances);
+    pendingChunks.add(chunk);
+    appendPendingChunks();
+    if (isTalking && !waitingForParse)
+      enqueueAhead();
+    resumeAfterParse();
+  }
+
+  // Hands chunks over to javascript, once the page is loaded.
+  private void appendPendingChunks() {
+    if (!webViewLoaded || isDead)
+      return;
+    for (Chunk chunk : pendingChunks) {
+      int index;
+      synchronized (chunksHtml) {
+        index = chunksHtml.size();
+        chunksHtml.add(chunk.html);
+      }
+      StringBuilder builder = new StringBuilder("javascript:appendChunk(");
+      builder.append(generation).append(',').append(index).append(",[");
+      appendNumberOfSpans(builder, chunk.numberOfSpansPerUtterance);
+      builder.append("]);");
+      surface.webView.loadUrl(builder.toString());
+    }
+    pendingChunks.clear();
+  }
+
+  private static void appendNumberOfSpans(StringBuilder builder,
+                                          ArrayList<Integer> numberOfSpans) {
+    for (int i = 0; i < numberOfSpans.size(); ++i) {
+      if (i > 0)
+        builder.append(',');
+      builder.append(numberOfSpans.get(i).intValue());
+    }
+  }
+
+  // Shows the first chunk of the article on the surface, and starts
+  // talking if appropriate. Note the footer is added on the page
+  // because we don't want it spoken. Chunks that come later go at the
+  // end of the article.
+  private void showParsed(Chunk chunk) {
+    firstNumberOfSpans = chunk.numberOfSpansPerUtterance;
+    synchronized (chunksHtml) {
+      chunksHtml.add(chunk.html);
+    }
+    surface.show(this, baseUrl);
+    surface.webView.requestFocus();
+
+    currentUtterance = 0;
+    if (callback.onViewReady())
+      _startTalking(true);
+    else
+      scheduleSynthesis();
+  }
+
+  // Has javascript put our first chunk in the page, which is loaded.
+  private void swapIn() {
+    StringBuilder builder = new StringBuilder("javascript:showArticle(");
+    builder.append(generation).append(",[");
+    appendNumberOfSpans(builder, firstNumberOfSpans);
+    builder.append("]);");
+    surface.webView.loadUrl(builder.toString());
+  }
+
+  // Continues talking if we were waiting for more of the parse.
+  private void resumeAfterParse() {
+    if (!waitingForParse)
+      return;
+    if (currentUtterance < utterances.size()) {
+      waitingForParse = false;
+      _startTalking(continueTalking);
+    } else if (parseComplete) {
+      waitingForParse = false;
+      endOfArticle();
+    }
+  }
+
   private boolean speakChecks() {
-    if (htmlTalker == null) {
+    if (utterances == null) {
       tts.speak(messages.speakParseError, 1, null);
       return false;
     }
-    if (htmlTalker.utterances.isEmpty()) {
+    if (utterances.isEmpty()) {
       tts.speak(messages.emptyArticle, 1, null);
       return false;
     }
@@ -411,9 +678,11 @@ public class TalkingWebView
   }
   public void _startTalking(boolean continueTalking) {
     this.continueTalking = continueTalking;
+    handler.removeCallbacks(synthesisRunner);
+    Core.speechCache.stopSynthesis();
     if (!speakChecks())
       return;
-    if (currentUtterance >= htmlTalker.utterances.size()) {
+    if (currentUtterance >= utterances.size() && parseComplete) {
       // Wrap to top.
       currentUtterance = 0;
     }
@@ -424,19 +693,37 @@ public class TalkingWebView
       lastEnqueuedUtterance = -1;
     }
     isTalking = true;
-    if (Config.LOGD) Log.d(TAG, String.format("StartTalking utterance %d", currentUtterance));
-    if (currentUtterance > lastEnqueuedUtterance) {
-      speakCompoundUtterance(currentUtterance);
-      lastEnqueuedUtterance = currentUtterance;
-    }
-    if (continueTalking && currentUtterance+1 < htmlTalker.utterances.size()) {
-      // Pipeline TTS processing to try and minimize delays between sentences.
-      speakCompoundUtterance(currentUtterance + 1);
-      lastEnqueuedUtterance = currentUtterance + 1;
+    if (currentUtterance >= utterances.size()) {
+      if (Config.LOGD) Log.d(TAG, String.format("Waiting for utterance %d to be parsed", currentUtterance));
+      waitingForParse = true;
+      return;
     }
+    if (Config.LOGD) Log.d(TAG, String.format("StartTalking utterance %d", currentUtterance));
+    enqueueAhead();
     // Show visual indication of this utterance.
     showSpoken();
   }
+  // Pipeline TTS processing to try and minimize delays between
+  // sentences: when continuing on, keep Core.speechQueueSetting
+  // utterances queued, counting the current one. Utterances are always
+  // queued in order from currentUtterance, so that completion callbacks
+  // can be matched to them by their id.
+  private void enqueueAhead() {
+    int last = currentUtterance;
+    if (continueTalking)
+      last += Math.min(Core.speechQueueSetting, MAX_SPEECH_QUEUE) - 1;
+    last = Math.min(last, utterances.size() - 1);
+    while (lastEnqueuedUtterance < last) {
+      int next = Math.max(lastEnqueuedUtterance + 1, currentUtterance);
+      speakCompoundUtterance(next);
+      lastEnqueuedUtterance = next;
+    }
+    // Keep the recordings of what's queued from being evicted.
+    Core.speechCache.pin(SpeechCache.spokenTexts(
+        utterances, currentUtterance,
+        lastEnqueuedUtterance - currentUtterance + 1));
+  }
+
   // When we were speaking just one sentence, this command lets it
   // continue on.
   public void continueTalking() {
@@ -445,57 +732,87 @@ public class TalkingWebView
 
   // Tells javascript to scroll to and color the current utterance.
   private void showSpoken() {
-    if (!webViewLoaded || webView == null)
+    if (!webViewLoaded || isDead)
       return;
-    if (htmlTalker == null
+    if (utterances == null
         || currentUtterance < 0
-        || currentUtterance >= htmlTalker.utterances.size())
+        || currentUtterance >= utterances.size())
       return;
     callShowSpoken(currentUtterance);
   }
   private void callShowSpoken(int utterance) {
-    webView.loadUrl(String.format("javascript:showSpoken(%d);", utterance));
+    surface.webView.loadUrl(
+        String.format("javascript:showSpoken(%d);", utterance));
   }
 
   public void stopTalking() {
     if (isTalking) {
       tts.stop();
       isTalking = false;
+      waitingForParse = false;
       callback.onTalking(false);
+      scheduleSynthesis();
       if (Config.LOGD) Log.d(TAG, String.format("Stopped talking during utterance %d", currentUtterance));
     }
     lastEnqueuedUtterance = -1;
   }
 
-  // Speak the current utterance from htmlTalker.
+  // Speak the current utterance from |utterances|. Each call to the
+  // TTS is a request to its service, so adjacent texts go in a single
+  // call, unless one of them plays back a recording, and the last call
+  // carries the utterance id for the completion callback.
   private void speakCompoundUtterance(int utterance_index) {
-    Utterance utt = htmlTalker.utterances.get(utterance_index);
-    for (int i = 0; i < utt.size(); ++i) {
-      SpeechElement e = utt.get(i);
-      HashMap<String, String> params = null;
+    Utterance utt = utterances.get(utterance_index);
+    HashMap<String, String> lastParams = new HashMap<String, String>();
+    lastParams.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
+                   String.valueOf(++ttsCallbackUtteranceId));
+    enqueueTimes[ttsCallbackUtteranceId % enqueueTimes.length]
+        = SystemClock.uptimeMillis();
+    int i = 0;
+    while (i < utt.size()) {
+      SpeechElement e = utt.get(i++);
+      String toSpeak = e.toString();
+      if (e instanceof SpokenText) {
+        if (Core.speechCache.hasRecording(toSpeak)) {
+          // Played back as synthesized ahead.
+          toSpeak = Core.speechCache.textToSpeak(toSpeak);
+        } else {
+          StringBuilder merged = null;
+          while (i < utt.size() && utt.get(i) instanceof SpokenText
+                 && !Core.speechCache.hasRecording(utt.get(i).toString())) {
+            if (merged == null)
+              merged = new StringBuilder(toSpeak);
+            // SpokenText ends with a space.
+            merged.append(utt.get(i++).toString());
+          }
+          if (merged != null)
+            toSpeak = merged.toString();
+        }
+      }
+      HashMap<String, String> params = i == utt.size() ? lastParams : null;
+      ++ttsCalls;
       if (e instanceof EarconIndication) {
-        String name = e.toString();
-        if (Config.LOGD) Log.d(TAG, "earcon " + name);
-        tts.playEarcon(name, 1, params);
+        if (Config.LOGD) Log.d(TAG, "earcon " + toSpeak);
+        tts.playEarcon(toSpeak, 1, params);
       } else {
-        String toSpeak = e.toString();
         if (Config.LOGD) Log.d(TAG, "toSpeak: "+toSpeak);
         tts.speak(toSpeak, 1, params);
       }
-      if (i == utt.size() - 1) {
-        // Last element for this utterance.
-        params = new HashMap<String, String>();
-        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
-                   String.valueOf(++ttsCallbackUtteranceId));
-        if (Config.LOGD) Log.d(TAG, "Last element");
-        tts.speak("", 1, params);
-      }
     }
+    // Before, one call per element, and an empty one for the id.
+    uncoalescedTtsCalls += utt.size() + 1;
     keepUnlocked();
   }
+  // Calls to the TTS for this article, and how many it would have
+  // taken without coalescing.
+  private int ttsCalls, uncoalescedTtsCalls;
 
   public void onUtteranceCompleted(String utteranceIdString) {
     if (Config.LOGD) Log.d(TAG, "onUtteranceCompleted: " + utteranceIdString);
+    if (SpeechCache.isSynthesisId(utteranceIdString)) {
+      Core.speechCache.onSynthesisCompleted(utteranceIdString);
+      return;
+    }
     if (isDead)
       return;
     final int utteranceId = Integer.parseInt(utteranceIdString);
@@ -515,11 +832,36 @@ public class TalkingWebView
             currentUtterance += spokenUtterances - 1;
           if (Config.LOGD) Log.d(TAG, String.format("onUtteranceCompleted: %d -> %d", utteranceId, currentUtterance));
           startCallbackUtteranceId = utteranceId;
+          if (continueTalking && currentUtterance + 1 < utterances.size())
+            noteSpeechTransition(utteranceId);
           speechProgress();
         }
       });
   }
 
+  /* We can't tell when the engine starts speaking an utterance, but it
+     can only go on without a pause if it was handed the next utterance
+     early enough to synthesize it. So on each move to the next
+     utterance we measure how long before that the next one was queued
+     (its lead), and count the times it wasn't queued yet (underruns,
+     which always leave a gap). Kept across articles, in the log. */
+  private static final int MAX_SPEECH_QUEUE = 8;
+  private long[] enqueueTimes = new long[MAX_SPEECH_QUEUE];
+  private static int speechTransitions, speechUnderruns;
+  private static long totalSpeechLead;
+
+  private void noteSpeechTransition(int completedId) {
+    int nextId = completedId + 1;
+    ++speechTransitions;
+    if (nextId > ttsCallbackUtteranceId)
+      ++speechUnderruns;
+    else
+      totalSpeechLead += SystemClock.uptimeMillis()
+          - enqueueTimes[nextId % enqueueTimes.length];
+    int queued = speechTransitions - speechUnderruns;
+    if (Config.LOGD) Log.d(TAG, String.format("Speech queue of %d: %d transitions, %d underruns, %dms average lead", Core.speechQueueSetting, speechTransitions, speechUnderruns, queued > 0 ? totalSpeechLead / queued : 0));
+  }
+
   private void speechProgress() {
     if (!isTalking)
       return;
@@ -529,21 +871,16 @@ public class TalkingWebView
         ;  // don't increment
       else
         ++currentUtterance;
-      if (currentUtterance >= htmlTalker.utterances.size()) {
-        // End of article.
-        if (Config.LOGD) Log.d(TAG, "Finished talking");
-        currentUtterance = htmlTalker.utterances.size();
-        tts.speak(messages.endOfPage, 1, null);
-        isTalking = false;
-        callback.onTalking(false);
-        if (continueTalking)
-          callback.onReadToBottom();
+      if (currentUtterance >= utterances.size() && parseComplete) {
+        endOfArticle();
       } else {
         if (!continueTalking) {
           if (Config.LOGD) Log.d(TAG, String.format("Done just one utterance, now at %d", currentUtterance));
           isTalking = false;
           callback.onTalking(false);
+          scheduleSynthesis();
         } else {
+          // Waits for the parse if it got ahead of it.
           if (Config.LOGD) Log.d(TAG, String.format("Speaking next utterance: %d", currentUtterance));
           _startTalking(true);
         }
@@ -551,6 +888,40 @@ public class TalkingWebView
     }
   }
 
+  private void endOfArticle() {
+    if (Config.LOGD) Log.d(TAG, "Finished talking");
+    currentUtterance = utterances.size();
+    tts.speak(messages.endOfPage, 1, null);
+    isTalking = false;
+    callback.onTalking(false);
+    if (continueTalking)
+      callback.onReadToBottom();
+    scheduleSynthesis();
+  }
+
+  // Once speech has been idle for a little while, have what follows
+  // synthesized ahead, and the utterance before for skipping back. Not
+  // right away: stopping is often followed by starting again
+  // elsewhere, which would then wait for the synthesis.
+  private static final long SYNTHESIS_IDLE_DELAY = 2000;
+  private static final int SYNTHESIZE_AHEAD_UTTERANCES = 10;
+
+  private void scheduleSynthesis() {
+    handler.removeCallbacks(synthesisRunner);
+    handler.postDelayed(synthesisRunner, SYNTHESIS_IDLE_DELAY);
+  }
+  private Runnable synthesisRunner = new Runnable() {
+      public void run() {
+        if (isDead || isTalking || utterances == null)
+          return;
+        ArrayList<String> texts = SpeechCache.spokenTexts(
+            utterances, currentUtterance, SYNTHESIZE_AHEAD_UTTERANCES);
+        texts.addAll(SpeechCache.spokenTexts(
+            utterances, currentUtterance - 1, 1));
+        Core.speechCache.synthesizeAhead(texts);
+      }
+    };
+
   // Keep the phone from locking while we're talking.
   private void keepUnlocked() {
     handler.removeCallbacks(powerPokerRunner);
@@ -586,10 +957,13 @@ public class TalkingWebView
     // pressed, and it has not been released since).
     if (wasTalking || doSkip)
       ++currentUtterance;
-    if (currentUtterance >= htmlTalker.utterances.size()) {
-      currentUtterance = htmlTalker.utterances.size();
-      tts.speak(messages.endOfPage, 1, null);
-      return;
+    if (currentUtterance >= utterances.size()) {
+      currentUtterance = utterances.size();
+      if (parseComplete) {
+        tts.speak(messages.endOfPage, 1, null);
+        return;
+      }
+      // Else start talking as soon as we have it.
     }
     if (Config.LOGD) Log.d(TAG, String.format("nextUtterance %d", currentUtterance));
     skippingBackwards = false;
@@ -629,6 +1003,7 @@ public class TalkingWebView
         if (isTalking) {
           isTalking = false;
           callback.onTalking(false);
+          scheduleSynthesis();
           if (Config.LOGD) Log.d(TAG, String.format("Possibly interrupted talking during utterance %d", currentUtterance));
         }
       }